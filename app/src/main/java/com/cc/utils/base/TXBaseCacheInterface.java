@@ -1,5 +1,8 @@
 package com.cc.utils.base;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Created by Cheng on 16/11/11.
  */
@@ -28,4 +31,48 @@ public interface TXBaseCacheInterface {
     void putLong(String key, long value);
 
     void putFloat(String key, float value);
+
+    /**
+     * 批量读取, 不存在的key不在结果中
+     *
+     * @return key和值, 值为String, Boolean, Integer, Long或Float, 以字符串保存的数据返回String
+     */
+    Map<String, Object> getAll(Collection<String> keys);
+
+    /**
+     * 批量写入, 值只支持String, Boolean, Integer, Long, Float, 值为null和其他类型忽略.
+     * 删除key使用{@link #remove(String)}或{@link Editor#remove(String)}
+     */
+    void putAll(Map<String, ?> values);
+
+    /**
+     * 开始批量修改, 调用{@link Editor#apply()}后一起写入
+     */
+    Editor edit();
+
+    /**
+     * 批量修改, 同一个key以最后一次修改为准
+     */
+    interface Editor {
+
+        /**
+         * value为null时等于{@link #remove(String)}
+         */
+        Editor putString(String key, String value);
+
+        Editor putBoolean(String key, boolean value);
+
+        Editor putInt(String key, int value);
+
+        Editor putLong(String key, long value);
+
+        Editor putFloat(String key, float value);
+
+        Editor remove(String key);
+
+        /**
+         * 写入所有修改, 之后不能再使用
+         */
+        void apply();
+    }
 }
@@ -0,0 +1,90 @@
+package com.cc.utils.base;
+
+import android.text.TextUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 记录批量修改, apply时交给缓存一次写入. 值为null表示删除.
+ */
+abstract class TXCacheEditor implements TXBaseCacheInterface.Editor {
+
+    private final Map<String, Object> mChanges = new LinkedHashMap<String, Object>();
+    private boolean mApplied;
+
+    @Override
+    public TXBaseCacheInterface.Editor putString(String key, String value) {
+        return put(key, value);
+    }
+
+    @Override
+    public TXBaseCacheInterface.Editor putBoolean(String key, boolean value) {
+        return put(key, value);
+    }
+
+    @Override
+    public TXBaseCacheInterface.Editor putInt(String key, int value) {
+        return put(key, value);
+    }
+
+    @Override
+    public TXBaseCacheInterface.Editor putLong(String key, long value) {
+        return put(key, value);
+    }
+
+    @Override
+    public TXBaseCacheInterface.Editor putFloat(String key, float value) {
+        return put(key, value);
+    }
+
+    @Override
+    public TXBaseCacheInterface.Editor remove(String key) {
+        return put(key, null);
+    }
+
+    /**
+     * 加入putAll的数据, null和不支持的类型忽略. 各缓存的putXxx对null的处理不同, 批量写入不删除, 删除用remove
+     */
+    TXCacheEditor putAll(Map<String, ?> values) {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (isSupported(value)) {
+                put(entry.getKey(), value);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void apply() {
+        if (mApplied) {
+            throw new IllegalStateException("editor already applied");
+        }
+        mApplied = true;
+        if (!mChanges.isEmpty()) {
+            commit(mChanges);
+        }
+    }
+
+    /**
+     * 一次写入所有修改
+     *
+     * @param changes key和值, 按修改顺序, 值为null表示删除
+     */
+    abstract void commit(Map<String, Object> changes);
+
+    static boolean isSupported(Object value) {
+        return value instanceof String || value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Float;
+    }
+
+    private TXBaseCacheInterface.Editor put(String key, Object value) {
+        if (!TextUtils.isEmpty(key)) {
+            // 重新加入, 保持最后一次修改的顺序
+            mChanges.remove(key);
+            mChanges.put(key, value);
+        }
+        return this;
+    }
+}
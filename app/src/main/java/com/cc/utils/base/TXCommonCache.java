@@ -2,12 +2,28 @@ package com.cc.utils.base;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.cc.utils.manager.TXBackgroundThreadFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 通用缓存,使用sp实现,不能存储超大的value
  * <p>
+ * 写入先保存在内存中, {@link #FLUSH_DELAY_MILLIS}内的所有修改合并成一次Editor.apply(),
+ * 避免连续写入时sp多次重写整个文件. 读取时先读未写入的修改. 需要立即写入时调用{@link #flush()}.
+ * <p>
  * Created by Cheng on 16/11/11.
  */
 public class TXCommonCache implements TXBaseCacheInterface {
@@ -15,7 +31,36 @@ public class TXCommonCache implements TXBaseCacheInterface {
     private static final String TAG = "TXCommonCache";
 
     private static final String TX_COMMON_CACHE = "tx.common.cache";
-    private SharedPreferences mCache;
+    // 合并写入的时间窗口, 从第一次未写入的修改开始计算
+    private static final long FLUSH_DELAY_MILLIS = 100;
+    // 未写入的删除
+    private static final Object REMOVED = new Object();
+    private volatile SharedPreferences mCache;
+    // initAsync加载完成前不为null
+    private volatile CountDownLatch mLoadLatch;
+    // 未写入sp的修改, 按修改顺序
+    private final Map<String, Object> mPending = new LinkedHashMap<String, Object>();
+    // 没有写入时线程空闲这么久后退出
+    private static final long FLUSH_EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+    private final ScheduledThreadPoolExecutor mFlushExecutor = newFlushExecutor();
+    private ScheduledFuture<?> mFlushFuture;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * 后台低优先级的守护线程, 空闲时退出, 单例不一直占用线程
+     */
+    private static ScheduledThreadPoolExecutor newFlushExecutor() {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1, new TXBackgroundThreadFactory(TAG + "-flush"));
+        executor.setKeepAliveTime(FLUSH_EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     private static class InstanceHolder {
         public final static TXCommonCache instance = new TXCommonCache();
@@ -34,111 +79,359 @@ public class TXCommonCache implements TXBaseCacheInterface {
         mCache = context.getSharedPreferences(TX_COMMON_CACHE, Context.MODE_PRIVATE);
     }
 
+    /**
+     * 在后台线程加载sp, 不阻塞调用线程. 加载完成前写入正常保存,
+     * 读取时如果还没有加载完成, 阻塞到加载完成.
+     *
+     * @param listener 加载完成后在主线程回调, 可以为null
+     */
+    public void initAsync(Context context, final OnReadyListener listener) {
+        if (context == null) {
+            Log.e(TAG, "init fail context is null");
+            notifyReady(listener, false);
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final CountDownLatch latch = new CountDownLatch(1);
+        mLoadLatch = latch;
+        // 和合并写入使用同一个线程, 加载完成前不会写入
+        mFlushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                SharedPreferences cache = null;
+                try {
+                    cache = appContext.getSharedPreferences(TX_COMMON_CACHE, Context.MODE_PRIVATE);
+                    // sp在第一次读取时等待文件解析完成, 在这里完成解析
+                    cache.contains(TX_COMMON_CACHE);
+                    mCache = cache;
+                    Log.d(TAG, "load cost:" + (System.currentTimeMillis() - start));
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "init fail for " + e.getMessage());
+                } finally {
+                    if (mLoadLatch == latch) {
+                        mLoadLatch = null;
+                    }
+                    latch.countDown();
+                }
+                notifyReady(listener, cache != null);
+            }
+        });
+    }
+
+    /**
+     * @return 是否已加载完成, 未完成时读取会阻塞
+     */
+    public boolean isReady() {
+        return mCache != null && mLoadLatch == null;
+    }
+
+    /**
+     * initAsync加载完成的回调
+     */
+    public interface OnReadyListener {
+        /**
+         * @param success 是否加载成功, 失败时读取都返回默认值
+         */
+        void onReady(boolean success);
+    }
+
+    private static void notifyReady(final OnReadyListener listener, final boolean success) {
+        if (listener == null) {
+            return;
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onReady(success);
+            }
+        });
+    }
+
+    /**
+     * 是否已调用init或initAsync
+     */
+    private boolean isInitialized() {
+        return mCache != null || mLoadLatch != null;
+    }
+
+    /**
+     * @return 已加载的sp, initAsync还没有完成时等待, 初始化失败时为null
+     */
+    private SharedPreferences awaitCache() {
+        CountDownLatch latch = mLoadLatch;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mCache;
+    }
+
     @Override
     public String getString(String key, String defaultValue) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return defaultValue;
         }
 
-        return mCache.getString(key, defaultValue);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defaultValue : (String) pending;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache == null ? defaultValue : cache.getString(key, defaultValue);
     }
 
     @Override
     public boolean getBoolean(String key, boolean defaultValue) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return defaultValue;
         }
 
-        return mCache.getBoolean(key, defaultValue);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defaultValue : (Boolean) pending;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache == null ? defaultValue : cache.getBoolean(key, defaultValue);
     }
 
     @Override
     public int getInt(String key, int defaultValue) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return defaultValue;
         }
 
-        return mCache.getInt(key, defaultValue);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defaultValue : (Integer) pending;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache == null ? defaultValue : cache.getInt(key, defaultValue);
     }
 
     @Override
     public long getLong(String key, long defaultValue) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return defaultValue;
         }
 
-        return mCache.getLong(key, defaultValue);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defaultValue : (Long) pending;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache == null ? defaultValue : cache.getLong(key, defaultValue);
     }
 
     @Override
     public float getFloat(String key, float defaultValue) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return defaultValue;
         }
 
-        return mCache.getFloat(key, defaultValue);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defaultValue : (Float) pending;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache == null ? defaultValue : cache.getFloat(key, defaultValue);
     }
 
     @Override
     public boolean contains(String key) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return false;
         }
 
-        return mCache.contains(key);
+        Object pending = getPending(key);
+        if (pending != null) {
+            return pending != REMOVED;
+        }
+
+        SharedPreferences cache = awaitCache();
+        return cache != null && cache.contains(key);
     }
 
     @Override
     public void remove(String key) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().remove(key).apply();
+        enqueue(key, REMOVED);
     }
 
     @Override
     public void putString(String key, String value) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().putString(key, value).apply();
+        // 和sp一样, 写入null等于删除
+        enqueue(key, value == null ? REMOVED : value);
     }
 
     @Override
     public void putBoolean(String key, boolean value) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().putBoolean(key, value).apply();
+        enqueue(key, value);
     }
 
     @Override
     public void putInt(String key, int value) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().putInt(key, value).apply();
+        enqueue(key, value);
     }
 
     @Override
     public void putLong(String key, long value) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().putLong(key, value).apply();
+        enqueue(key, value);
     }
 
     @Override
     public void putFloat(String key, float value) {
-        if (mCache == null || TextUtils.isEmpty(key)) {
+        if (!isInitialized() || TextUtils.isEmpty(key)) {
             return;
         }
 
-        mCache.edit().putFloat(key, value).apply();
+        enqueue(key, value);
+    }
+
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (!isInitialized() || keys == null || keys.isEmpty()) {
+            return result;
+        }
+
+        SharedPreferences cache = awaitCache();
+        if (cache == null) {
+            return result;
+        }
+        // SharedPreferences.getAll只加锁一次
+        Map<String, ?> all = cache.getAll();
+        synchronized (mPending) {
+            for (String key : keys) {
+                Object value = mPending.containsKey(key) ? mPending.get(key) : all.get(key);
+                if (value != null && TXCacheEditor.isSupported(value)) {
+                    result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values) {
+        if (!isInitialized() || values == null || values.isEmpty()) {
+            return;
+        }
+
+        ((TXCacheEditor) edit()).putAll(values).apply();
+    }
+
+    /**
+     * 批量修改和单个修改一样合并到下一次写入
+     */
+    @Override
+    public TXBaseCacheInterface.Editor edit() {
+        return new TXCacheEditor() {
+            @Override
+            void commit(Map<String, Object> changes) {
+                if (!isInitialized()) {
+                    return;
+                }
+
+                synchronized (mPending) {
+                    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                        Object value = entry.getValue();
+                        putPending(entry.getKey(), value == null ? REMOVED : value);
+                    }
+                    scheduleFlush();
+                }
+            }
+        };
+    }
+
+    /**
+     * 立即把所有未写入的修改写入sp, 使用同一个Editor, 只写一次文件.
+     * 写入sp的内存后才从未写入的修改中删除, 期间读取不会读到旧数据.
+     */
+    public void flush() {
+        SharedPreferences cache = awaitCache();
+        synchronized (mPending) {
+            if (mFlushFuture != null) {
+                mFlushFuture.cancel(false);
+                mFlushFuture = null;
+            }
+            if (cache == null || mPending.isEmpty()) {
+                return;
+            }
+
+            SharedPreferences.Editor editor = cache.edit();
+            for (Map.Entry<String, Object> entry : mPending.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value == REMOVED) {
+                    editor.remove(key);
+                } else if (value instanceof String) {
+                    editor.putString(key, (String) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(key, (Float) value);
+                }
+            }
+            editor.apply();
+            mPending.clear();
+        }
+    }
+
+    private Object getPending(String key) {
+        synchronized (mPending) {
+            return mPending.get(key);
+        }
+    }
+
+    private void enqueue(String key, Object value) {
+        synchronized (mPending) {
+            putPending(key, value);
+            scheduleFlush();
+        }
+    }
+
+    private void putPending(String key, Object value) {
+        // 重新加入, 保持最后一次修改的顺序
+        mPending.remove(key);
+        mPending.put(key, value);
+    }
+
+    private void scheduleFlush() {
+        if (mFlushFuture == null && !mPending.isEmpty()) {
+            mFlushFuture = mFlushExecutor.schedule(mFlushRunnable, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 }
@@ -0,0 +1,588 @@
+package com.cc.utils.base;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 通用缓存, 使用mmap映射的追加日志文件实现, 可以代替{@link TXCommonCache}存储长串.
+ * <p>
+ * 每次修改只在文件末尾追加一条记录, 写入耗时只和value大小有关, 不需要重写整个文件.
+ * 所有数据在内存中保存一份, 读取不访问文件. 被覆盖的记录超过一半时重写文件压缩.
+ * 写入mmap的数据在进程崩溃后不会丢失, 断电需要调用{@link #sync()}.
+ * <p>
+ * 文件格式:
+ * <pre>
+ *     magic    int
+ *     version  int
+ *     记录     [body长度 int][body][crc32 int], body为[type byte][key长度 short][key UTF-8][value]
+ * </pre>
+ * value: String为UTF-8, boolean 1 byte, int和float 4 byte, long 8 byte, 删除没有value.
+ * 文件末尾未使用的部分都是0, 读到body长度为0或校验失败时结束.
+ */
+public class TXMappedCache implements TXBaseCacheInterface {
+
+    private static final String TAG = "TXMappedCache";
+
+    private static final String TX_MAPPED_CACHE = "tx.mapped.cache";
+
+    private static final int MAGIC = 0x54584d43;
+    private static final int VERSION_1 = 1;
+    private static final int HEADER_SIZE = 8;
+    // body长度和crc
+    private static final int RECORD_OVERHEAD = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // 被覆盖的记录至少这么大才压缩, 避免小文件频繁重写
+    private static final int COMPACT_MIN_DEAD_BYTES = 64 * 1024;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_REMOVE = 6;
+
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<String, Object>();
+    // 每个key最新记录的字节数, 覆盖或删除时计入mDeadBytes
+    private final Map<String, Integer> mRecordSizes = new HashMap<String, Integer>();
+    private final CRC32 mCrc = new CRC32();
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mWritePosition;
+    private int mDeadBytes;
+    private ByteBuffer mRecord = ByteBuffer.allocate(256);
+
+    private static class InstanceHolder {
+        public final static TXMappedCache instance = new TXMappedCache();
+    }
+
+    public static TXMappedCache getInstance() {
+        return InstanceHolder.instance;
+    }
+
+    public void init(Context context) {
+        if (context == null) {
+            Log.e(TAG, "init fail context is null");
+            return;
+        }
+
+        init(new File(context.getFilesDir(), TX_MAPPED_CACHE));
+    }
+
+    /**
+     * 使用指定的文件初始化, 不依赖Context
+     */
+    public synchronized void init(File file) {
+        closeFile();
+        mValues.clear();
+        mRecordSizes.clear();
+        mFile = file;
+        try {
+            openFile();
+        } catch (IOException e) {
+            Log.e(TAG, "init fail for " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        Object value = get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        Object value = get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        Object value = get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defaultValue) {
+        Object value = get(key);
+        return value instanceof Float ? (Float) value : defaultValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        // 和sp一样, 写入null等于删除
+        put(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        put(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        put(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        put(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        put(key, value);
+    }
+
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (keys == null) {
+            return result;
+        }
+
+        for (String key : keys) {
+            Object value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+
+        ((TXCacheEditor) edit()).putAll(values).apply();
+    }
+
+    /**
+     * 批量修改只加锁一次, 每个修改仍是一条记录
+     */
+    @Override
+    public TXBaseCacheInterface.Editor edit() {
+        return new TXCacheEditor() {
+            @Override
+            void commit(Map<String, Object> changes) {
+                synchronized (TXMappedCache.this) {
+                    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                        put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 删除所有数据
+     */
+    public synchronized void clear() {
+        if (mFile == null) {
+            return;
+        }
+
+        closeFile();
+        mValues.clear();
+        mRecordSizes.clear();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "fail to delete " + mFile);
+        }
+        try {
+            openFile();
+        } catch (IOException e) {
+            Log.e(TAG, "clear fail for " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * 把映射的数据写入磁盘, 断电后也不会丢失
+     */
+    public synchronized void sync() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * 重写文件, 只保留每个key的最新数据
+     */
+    public synchronized void compact() {
+        if (mBuffer == null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION_1).flip();
+            channel.write(header);
+            int size = HEADER_SIZE;
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                ByteBuffer record = encode(entry.getKey(), entry.getValue());
+                size += record.remaining();
+                channel.write(record);
+            }
+            channel.force(true);
+            raf.close();
+            raf = null;
+
+            closeFile();
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("fail to rename " + tmp);
+            }
+            // 重新读取的数据和内存中的相同, 不清空mValues, 压缩期间读取不受影响
+            mRecordSizes.clear();
+            openFile();
+            Log.d(TAG, "compact size:" + size + " cost:" + (System.currentTimeMillis() - start));
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when compact, e:" + e.getLocalizedMessage());
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                    // ignore
+                }
+            }
+            tmp.delete();
+            if (mBuffer == null) {
+                // 旧文件已关闭, 重新打开
+                mRecordSizes.clear();
+                try {
+                    openFile();
+                } catch (IOException reopen) {
+                    Log.e(TAG, "reopen fail for " + reopen.getMessage());
+                    closeFile();
+                }
+            }
+        }
+    }
+
+    private Object get(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        return mValues.get(key);
+    }
+
+    /**
+     * 写入一条记录
+     *
+     * @param value 为null时删除
+     */
+    private synchronized void put(String key, Object value) {
+        if (mBuffer == null || TextUtils.isEmpty(key)) {
+            return;
+        }
+        if (value == null && !mValues.containsKey(key)) {
+            return;
+        }
+
+        try {
+            ByteBuffer record = encode(key, value);
+            int size = record.remaining();
+            if (ensureCapacity(size)) {
+                // 压缩时编码其他记录覆盖了mRecord, 重新编码
+                record = encode(key, value);
+            }
+            mBuffer.position(mWritePosition);
+            mBuffer.put(record);
+            mWritePosition += size;
+            apply(key, value, size);
+
+            if (mDeadBytes >= COMPACT_MIN_DEAD_BYTES && mDeadBytes > mWritePosition / 2) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when put, key:" + key + " e:" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 更新内存中的数据和被覆盖的字节数
+     */
+    private void apply(String key, Object value, int recordSize) {
+        Integer oldSize = mRecordSizes.remove(key);
+        if (oldSize != null) {
+            mDeadBytes += oldSize;
+        }
+        if (value == null) {
+            mValues.remove(key);
+            // 删除记录本身也没有用
+            mDeadBytes += recordSize;
+        } else {
+            mValues.put(key, value);
+            mRecordSizes.put(key, recordSize);
+        }
+    }
+
+    /**
+     * @return 是否进行了压缩, 压缩后之前encode的记录已被覆盖
+     */
+    private boolean ensureCapacity(int size) throws IOException {
+        long required = (long) mWritePosition + size;
+        if (required <= mBuffer.capacity()) {
+            return false;
+        }
+        // 能通过压缩腾出空间时不扩大文件
+        boolean compacted = false;
+        if (mDeadBytes >= size && mDeadBytes > mWritePosition / 2) {
+            compact();
+            compacted = true;
+            required = (long) mWritePosition + size;
+            if (mBuffer == null) {
+                throw new IOException("fail to reopen after compact");
+            }
+            if (required <= mBuffer.capacity()) {
+                return true;
+            }
+        }
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("file too large");
+        }
+
+        int capacity = mBuffer.capacity();
+        while (capacity < required) {
+            capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
+        }
+        mRaf.setLength(capacity);
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return compacted;
+    }
+
+    private void openFile() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("fail to create " + parent);
+        }
+
+        mRaf = new RandomAccessFile(mFile, "rw");
+        long length = mRaf.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("file too large");
+        }
+        int capacity = Math.max((int) length, INITIAL_CAPACITY);
+        if (length < capacity) {
+            mRaf.setLength(capacity);
+        }
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mDeadBytes = 0;
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION_1) {
+            if (length > 0) {
+                Log.e(TAG, "unexpected header, reset " + mFile);
+            }
+            resetBuffer();
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        mWritePosition = HEADER_SIZE;
+        while (readRecord()) {
+            // 读取到最后一条完整的记录
+        }
+        // 有不完整的记录时清零之后的内容, 后续写入不会和残留数据混在一起
+        if (mWritePosition + 4 <= capacity && mBuffer.getInt(mWritePosition) != 0) {
+            Log.e(TAG, "discard incomplete record at " + mWritePosition);
+            for (int i = mWritePosition; i < capacity; i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+        }
+        Log.d(TAG, "load count:" + mValues.size() + " cost:" + (System.currentTimeMillis() - start));
+    }
+
+    private void resetBuffer() {
+        for (int i = 0; i < mBuffer.capacity(); i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION_1);
+        mWritePosition = HEADER_SIZE;
+    }
+
+    /**
+     * 读取mWritePosition处的记录
+     *
+     * @return 是否读取到完整的记录
+     */
+    private boolean readRecord() {
+        int position = mWritePosition;
+        int capacity = mBuffer.capacity();
+        if (position + RECORD_OVERHEAD > capacity) {
+            return false;
+        }
+        int bodyLength = mBuffer.getInt(position);
+        if (bodyLength <= 0 || bodyLength > capacity - position - RECORD_OVERHEAD) {
+            return false;
+        }
+
+        byte[] body = new byte[bodyLength];
+        mBuffer.position(position + 4);
+        mBuffer.get(body);
+        int crc = mBuffer.getInt();
+        mCrc.reset();
+        mCrc.update(body);
+        if (crc != (int) mCrc.getValue()) {
+            Log.e(TAG, "record checksum mismatch at " + position);
+            return false;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            byte type = buffer.get();
+            byte[] keyBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, "UTF-8");
+            Object value = decode(type, buffer);
+            int size = bodyLength + RECORD_OVERHEAD;
+            mWritePosition += size;
+            apply(key, value, size);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "malformed record at " + position + " e:" + e.getLocalizedMessage());
+            return false;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError();
+        }
+    }
+
+    private static Object decode(byte type, ByteBuffer buffer) throws UnsupportedEncodingException {
+        switch (type) {
+            case TYPE_STRING:
+                return new String(buffer.array(), buffer.position(), buffer.remaining(), "UTF-8");
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_REMOVE:
+                return null;
+            default:
+                throw new IllegalArgumentException("unexpected type: " + type);
+        }
+    }
+
+    /**
+     * 编码一条完整的记录, 返回的buffer在下次调用前有效
+     */
+    private ByteBuffer encode(String key, Object value) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        if (keyBytes.length > 0xffff) {
+            throw new IOException("key too long");
+        }
+        byte[] stringBytes = value instanceof String ? ((String) value).getBytes("UTF-8") : null;
+        int valueLength;
+        byte type;
+        if (value == null) {
+            type = TYPE_REMOVE;
+            valueLength = 0;
+        } else if (stringBytes != null) {
+            type = TYPE_STRING;
+            valueLength = stringBytes.length;
+        } else if (value instanceof Boolean) {
+            type = TYPE_BOOLEAN;
+            valueLength = 1;
+        } else if (value instanceof Integer) {
+            type = TYPE_INT;
+            valueLength = 4;
+        } else if (value instanceof Long) {
+            type = TYPE_LONG;
+            valueLength = 8;
+        } else if (value instanceof Float) {
+            type = TYPE_FLOAT;
+            valueLength = 4;
+        } else {
+            throw new IOException("unsupported value: " + value.getClass());
+        }
+
+        int bodyLength = 3 + keyBytes.length + valueLength;
+        int size = bodyLength + RECORD_OVERHEAD;
+        if (mRecord.capacity() < size) {
+            mRecord = ByteBuffer.allocate(Math.max(size, mRecord.capacity() * 2));
+        }
+        ByteBuffer record = mRecord;
+        record.clear();
+        record.putInt(bodyLength);
+        record.put(type);
+        record.putShort((short) keyBytes.length);
+        record.put(keyBytes);
+        switch (type) {
+            case TYPE_STRING:
+                record.put(stringBytes);
+                break;
+            case TYPE_BOOLEAN:
+                record.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case TYPE_INT:
+                record.putInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                record.putLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                record.putFloat((Float) value);
+                break;
+            default:
+                break;
+        }
+        mCrc.reset();
+        mCrc.update(record.array(), 4, bodyLength);
+        record.putInt((int) mCrc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private void closeFile() {
+        mBuffer = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mRaf = null;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.cc.utils.base;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 基本类型数据的页, 所有key保存在同一个文件中, 值为类型 + 固定长度的二进制, 读取时不需要解析字符串.
+ * <p>
+ * 文件格式:
+ * <pre>
+ *     magic    int
+ *     version  byte
+ *     count    int
+ *     key      UTF     count组数据
+ *     type     byte
+ *     value    boolean 1 byte, int 4 byte, long 8 byte, float 4 byte
+ *     crc32    int     之前所有内容的校验
+ * </pre>
+ * 文件不受DiskCache的LRU淘汰. 修改先更新内存, {@link #SAVE_DELAY_MILLIS}内的修改在写入线程中合并成一次整体重写,
+ * 先写临时文件并sync再重命名. 写入失败时这次的修改恢复成文件中的数据, 内存和文件保持一致.
+ * 加载时校验失败的文件重命名为.corrupt保留, 不直接删除.
+ */
+class TXPrimitivePage {
+
+    private static final String TAG = "TXPrimitivePage";
+
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+
+    private static final int MAGIC = 0x54585050;
+    private static final int VERSION_1 = 1;
+    // 太长的key仍使用单独的数据保存
+    private static final int MAX_KEY_LENGTH = 256;
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    // 合并写入的时间窗口, 从第一次未写入的修改开始计算
+    private static final long SAVE_DELAY_MILLIS = 100;
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor;
+    private final Listener mListener;
+    private final ConcurrentHashMap<String, Value> mValues = new ConcurrentHashMap<String, Value>();
+    private volatile boolean mLoaded;
+    // 文件大小, 加载或写入后更新
+    private volatile long mFileSize;
+    // 未写入文件的修改, 值为文件中的数据, 文件中没有时为null, 写入失败时恢复
+    private Map<String, Value> mUnsaved = new HashMap<String, Value>();
+    private ScheduledFuture<?> mSaveFuture;
+    // 每次clear加1, 之前开始的写入不再生效
+    private int mGeneration;
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    /**
+     * 写入文件成功后在写入线程中回调
+     */
+    interface Listener {
+        /**
+         * @param saved 这次写入的数据, 不包括删除的key
+         */
+        void onSaved(TXPrimitivePage page, Map<String, Value> saved);
+    }
+
+    /**
+     * 类型和值, 值统一保存为long: boolean为0或1, float为Float.floatToIntBits
+     */
+    static final class Value {
+        final byte type;
+        final long bits;
+
+        Value(byte type, long bits) {
+            this.type = type;
+            this.bits = bits;
+        }
+
+        /**
+         * @return 不是基本类型时返回null
+         */
+        static Value of(Object value) {
+            if (value instanceof Boolean) {
+                return new Value(TYPE_BOOLEAN, (Boolean) value ? 1 : 0);
+            } else if (value instanceof Integer) {
+                return new Value(TYPE_INT, (Integer) value);
+            } else if (value instanceof Long) {
+                return new Value(TYPE_LONG, (Long) value);
+            } else if (value instanceof Float) {
+                return new Value(TYPE_FLOAT, Float.floatToIntBits((Float) value));
+            }
+            return null;
+        }
+
+        /**
+         * @return 装箱后的值
+         */
+        Object box() {
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    return bits != 0;
+                case TYPE_INT:
+                    return (int) bits;
+                case TYPE_FLOAT:
+                    return Float.intBitsToFloat((int) bits);
+                default:
+                    return bits;
+            }
+        }
+
+        /**
+         * @return 和以前用String.valueOf保存的字符串相同
+         */
+        @Override
+        public String toString() {
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    return String.valueOf(bits != 0);
+                case TYPE_INT:
+                    return String.valueOf((int) bits);
+                case TYPE_FLOAT:
+                    return String.valueOf(Float.intBitsToFloat((int) bits));
+                default:
+                    return String.valueOf(bits);
+            }
+        }
+    }
+
+    /**
+     * @param executor 写入文件的线程
+     */
+    TXPrimitivePage(File file, ScheduledExecutorService executor, Listener listener) {
+        mFile = file;
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    static boolean accepts(String key) {
+        return key.length() <= MAX_KEY_LENGTH;
+    }
+
+    Value get(String key) {
+        ensureLoaded();
+        return mValues.get(key);
+    }
+
+    boolean contains(String key) {
+        ensureLoaded();
+        return mValues.containsKey(key);
+    }
+
+    synchronized void put(String key, byte type, long bits) {
+        ensureLoaded();
+        putValue(key, new Value(type, bits));
+        scheduleSave();
+    }
+
+    /**
+     * @return 是否包含该key
+     */
+    synchronized boolean remove(String key) {
+        ensureLoaded();
+        if (!removeValue(key)) {
+            return false;
+        }
+        scheduleSave();
+        return true;
+    }
+
+    /**
+     * 批量修改, 和其他修改合并写入
+     *
+     * @param values  写入的数据
+     * @param removed 删除的key, 不存在的key忽略
+     */
+    synchronized void apply(Map<String, Value> values, Collection<String> removed) {
+        ensureLoaded();
+        for (String key : removed) {
+            removeValue(key);
+        }
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+            putValue(entry.getKey(), entry.getValue());
+        }
+        scheduleSave();
+    }
+
+    /**
+     * 立即把未写入的修改写入文件, 在写入线程中调用
+     */
+    void save() {
+        Map<String, Value> unsaved;
+        Map<String, Value> snapshot;
+        int generation;
+        synchronized (this) {
+            if (mSaveFuture != null) {
+                mSaveFuture.cancel(false);
+                mSaveFuture = null;
+            }
+            if (mUnsaved.isEmpty()) {
+                return;
+            }
+            unsaved = mUnsaved;
+            mUnsaved = new HashMap<String, Value>();
+            snapshot = new HashMap<String, Value>(mValues);
+            generation = mGeneration;
+        }
+
+        // 写文件和sync不持有锁, 不阻塞读写
+        boolean success = persist(snapshot, generation);
+        Map<String, Value> saved = new HashMap<String, Value>();
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            for (Map.Entry<String, Value> entry : unsaved.entrySet()) {
+                String key = entry.getKey();
+                if (success) {
+                    Value value = snapshot.get(key);
+                    if (value != null) {
+                        saved.put(key, value);
+                    }
+                } else if (mUnsaved.containsKey(key)) {
+                    // 之后又修改过, 文件中仍是这次修改前的数据
+                    mUnsaved.put(key, entry.getValue());
+                } else if (entry.getValue() == null) {
+                    mValues.remove(key);
+                } else {
+                    mValues.put(key, entry.getValue());
+                }
+            }
+        }
+        if (!success) {
+            Log.e(TAG, "save page fail, restore changes:" + unsaved.size());
+        } else if (!saved.isEmpty() && mListener != null) {
+            mListener.onSaved(this, saved);
+        }
+    }
+
+    /**
+     * @return 文件占用的字节数
+     */
+    long fileSize() {
+        ensureLoaded();
+        return mFileSize;
+    }
+
+    synchronized void clear() {
+        mValues.clear();
+        mUnsaved.clear();
+        if (mSaveFuture != null) {
+            mSaveFuture.cancel(false);
+            mSaveFuture = null;
+        }
+        mGeneration++;
+        mLoaded = true;
+        mFileSize = 0;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "fail to delete " + mFile);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!mLoaded) {
+                load();
+                mLoaded = true;
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            byte[] bytes = readFile(mFile);
+            if (bytes.length < 4) {
+                throw new IOException("truncated page");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+            dis.skipBytes(bytes.length - 4);
+            if (dis.readInt() != (int) crc.getValue()) {
+                throw new IOException("page checksum mismatch");
+            }
+
+            dis = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (dis.readInt() != MAGIC || dis.readByte() != VERSION_1) {
+                throw new IOException("unexpected page header");
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = dis.readUTF();
+                byte type = dis.readByte();
+                mValues.put(key, new Value(type, readValue(dis, type)));
+            }
+            mFileSize = bytes.length;
+            Log.d(TAG, "load page count:" + count + " cost:" + (System.currentTimeMillis() - start));
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when load page, e:" + e.getLocalizedMessage());
+            mValues.clear();
+            // 保留损坏的文件用于排查和恢复, 只保留最近一次
+            File corrupt = new File(mFile.getPath() + CORRUPT_SUFFIX);
+            corrupt.delete();
+            if (!mFile.renameTo(corrupt)) {
+                mFile.delete();
+            }
+        }
+    }
+
+    private void putValue(String key, Value value) {
+        Value old = mValues.get(key);
+        if (old != null && old.type == value.type && old.bits == value.bits) {
+            return;
+        }
+        mValues.put(key, value);
+        markUnsaved(key, old);
+    }
+
+    private boolean removeValue(String key) {
+        Value old = mValues.remove(key);
+        if (old == null) {
+            return false;
+        }
+        markUnsaved(key, old);
+        return true;
+    }
+
+    /**
+     * @param old 修改前的数据, 同一个key只记录第一次修改前的
+     */
+    private void markUnsaved(String key, Value old) {
+        if (!mUnsaved.containsKey(key)) {
+            mUnsaved.put(key, old);
+        }
+    }
+
+    private void scheduleSave() {
+        if (mSaveFuture == null && !mUnsaved.isEmpty()) {
+            mSaveFuture = mExecutor.schedule(mSaveRunnable, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param generation 开始写入时的mGeneration, 期间clear过时不重命名
+     * @return 是否写入成功
+     */
+    private boolean persist(Map<String, Value> values, int generation) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + values.size() * 32);
+            DataOutputStream dos = new DataOutputStream(bytes);
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION_1);
+            dos.writeInt(values.size());
+            for (Map.Entry<String, Value> entry : values.entrySet()) {
+                Value value = entry.getValue();
+                dos.writeUTF(entry.getKey());
+                dos.writeByte(value.type);
+                writeValue(dos, value);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            dos.writeInt((int) crc.getValue());
+
+            fos = new FileOutputStream(tmp);
+            bytes.writeTo(fos);
+            // 重命名前写入磁盘, 否则异常断电后重命名可能先生效, 留下不完整的文件
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    tmp.delete();
+                    return false;
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("fail to rename " + tmp);
+                }
+                mFileSize = bytes.size();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when persist page, e:" + e.getLocalizedMessage());
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long readValue(DataInputStream dis, byte type) throws IOException {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return dis.readByte();
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                return dis.readInt();
+            case TYPE_LONG:
+                return dis.readLong();
+            default:
+                throw new IOException("unexpected type: " + type);
+        }
+    }
+
+    private static void writeValue(DataOutputStream dos, Value value) throws IOException {
+        switch (value.type) {
+            case TYPE_BOOLEAN:
+                dos.writeByte((int) value.bits);
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                dos.writeInt((int) value.bits);
+                break;
+            default:
+                dos.writeLong(value.bits);
+                break;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(bytes);
+        } finally {
+            dis.close();
+        }
+        return bytes;
+    }
+}
@@ -5,21 +5,38 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.cc.utils.manager.TXBackgroundThreadFactory;
 import com.cc.utils.manager.TXCacheManager;
 import com.cc.utils.model.TXDataModel;
 import com.cc.utils.utils.TXJsonUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import cache.DiskCache;
 
 /**
  * 和用户绑定的缓存,使用DiskCache实现
  * <p>
+ * 开启{@link #setWriteBehindEnabled(boolean)}后写入先保存在内存中立即返回, 读取时先读未写入的修改,
+ * 由后台线程批量写入DiskCache, 同一个key多次写入只写最后一次. 退出或切换用户前调用{@link #flush()}.
+ * <p>
  * Created by Cheng on 16/11/11.
  */
 public class TXUserCache implements TXBaseCacheInterface {
@@ -29,18 +46,112 @@ public class TXUserCache implements TXBaseCacheInterface {
     public static final String TX_USER_CACHE = "tx.user.cache.";
     // 最大50M
     private static final long MAX_SIZE = 1024 * 1024 * 50;
+    // 内存缓存最大2M, 按字符串占用的字节数计算
+    private static final int MEMORY_MAX_SIZE = 1024 * 1024 * 2;
+    // 超过这个大小的数据不放入内存缓存, 避免把常用的小数据挤出去
+    private static final int MEMORY_MAX_ENTRY_SIZE = MEMORY_MAX_SIZE / 8;
     private boolean mInitSucc;
     private DiskCache mDiskCache;
+    // 当前用户的缓存目录, 已注册到TXCacheManager统计占用空间
+    private File mCacheDir;
+    // boolean, int, long, float以二进制保存在同一个文件中
+    private TXPrimitivePage mPrimitivePage;
+    private static final String PRIMITIVE_PAGE_FILE = "primitive.page";
+    // 常用数据的内存缓存, 写入时同时写入DiskCache
+    private final LruCache<String, String> mMemoryCache = new LruCache<String, String>(MEMORY_MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, String value) {
+            return sizeOfEntry(key, value);
+        }
+    };
+    // 每次写入或删除加1, 读磁盘期间有修改时不把读到的旧数据放入内存缓存
+    private long mMemoryVersion;
+    // 解析后的model缓存最大1M, 按解析前json字符串占用的字节数估算
+    private static final int MODEL_CACHE_MAX_SIZE = 1024 * 1024;
+    private volatile boolean mModelCacheEnabled;
+    // 解析后的model缓存, 每个key只保存最近一次读取的类型, 和mMemoryCache一起失效
+    private final LruCache<String, ModelEntry> mModelCache = new LruCache<String, ModelEntry>(MODEL_CACHE_MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, ModelEntry value) {
+            return value.size;
+        }
+    };
+    // 异步写入时最多保存的未写入修改, 超过时写入阻塞到后台线程写完一批
+    private static final int WRITE_BEHIND_MAX_PENDING = 512;
+    // 合并写入的时间窗口, 从第一次未写入的修改开始计算
+    private static final long WRITE_BEHIND_DELAY_MILLIS = 50;
+    // 写入失败的修改保留在未写入的修改中, 这么久后重试
+    private static final long WRITE_BEHIND_RETRY_DELAY_MILLIS = 1000;
+    // 未写入的删除
+    private static final Object REMOVED = new Object();
+    private volatile boolean mWriteBehindEnabled;
+    // 未写入DiskCache的修改, 值为String, TXPrimitivePage.Value, PendingModel或REMOVED
+    private final Map<String, Object> mPendingWrites = new LinkedHashMap<String, Object>();
+    // 没有写入时线程空闲这么久后退出
+    private static final long WRITE_EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+    private final ScheduledThreadPoolExecutor mWriteExecutor = newWriteExecutor();
+    private ScheduledFuture<?> mDrainFuture;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainPendingWrites();
+        }
+    };
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainPendingWrites();
+            TXPrimitivePage primitivePage = mPrimitivePage;
+            if (primitivePage != null) {
+                primitivePage.save();
+            }
+        }
+    };
+    // DiskCache和数据页自己记录的大小, 统计占用空间时不用遍历文件
+    private final TXCacheManager.ManagedCache mManagedCache = new TXCacheManager.ManagedCache() {
+        @Override
+        public long size() {
+            DiskCache diskCache = mDiskCache;
+            TXPrimitivePage primitivePage = mPrimitivePage;
+            return (diskCache != null ? diskCache.size() : 0) + (primitivePage != null ? primitivePage.fileSize() : 0);
+        }
+    };
 
     private static class InstanceHolder {
         public final static TXUserCache instance = new TXUserCache();
     }
 
+    /**
+     * 后台低优先级的守护线程, 空闲时退出, 单例不一直占用线程
+     */
+    private static ScheduledThreadPoolExecutor newWriteExecutor() {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1, new TXBackgroundThreadFactory(TAG + "-write"));
+        executor.setKeepAliveTime(WRITE_EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public static TXUserCache getInstance() {
         return InstanceHolder.instance;
     }
 
     public void init(Context context, String cacheId) {
+        // 未写入的修改属于上一个用户
+        flush();
+        // 同一个目录不能同时打开两个DiskCache, 重新初始化前关闭上一个
+        mInitSucc = false;
+        if (mDiskCache != null) {
+            mDiskCache.close();
+            mDiskCache = null;
+        }
+        // 切换用户后不能读到上一个用户的内存缓存
+        synchronized (mMemoryCache) {
+            mMemoryVersion++;
+            mMemoryCache.evictAll();
+            mModelCache.evictAll();
+        }
+
         File cacheDir = TXCacheManager.getInstance().getCacheDir();
         if (cacheDir != null && cacheDir.exists()) {
             File dir = new File(cacheDir, TX_USER_CACHE + cacheId);
@@ -53,7 +164,12 @@ public class TXUserCache implements TXBaseCacheInterface {
 
             try {
                 mDiskCache = DiskCache.create(dir, 1, MAX_SIZE);
+                mPrimitivePage = new TXPrimitivePage(new File(dir, PRIMITIVE_PAGE_FILE), mWriteExecutor,
+                        newPageListener(mDiskCache));
                 mInitSucc = true;
+                TXCacheManager.getInstance().unregisterManagedCache(mCacheDir);
+                mCacheDir = dir;
+                TXCacheManager.getInstance().registerManagedCache(dir, mManagedCache);
             } catch (IOException e) {
                 mInitSucc = false;
                 Log.e(TAG, "init fail for " + e.getMessage());
@@ -67,7 +183,8 @@ public class TXUserCache implements TXBaseCacheInterface {
             return defaultValue;
         }
 
-        String value = mDiskCache.getString(key);
+        Object pending = getPendingWrite(key);
+        String value = findString(key, pending, findPrimitive(key, pending));
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
         }
@@ -81,7 +198,13 @@ public class TXUserCache implements TXBaseCacheInterface {
             return defaultValue;
         }
 
-        String valueStr = mDiskCache.getString(key);
+        Object pending = getPendingWrite(key);
+        TXPrimitivePage.Value primitive = findPrimitive(key, pending);
+        if (primitive != null && primitive.type == TXPrimitivePage.TYPE_BOOLEAN) {
+            return primitive.bits != 0;
+        }
+
+        String valueStr = findString(key, pending, primitive);
         if (TextUtils.isEmpty(valueStr)) {
             return defaultValue;
         }
@@ -102,7 +225,13 @@ public class TXUserCache implements TXBaseCacheInterface {
             return defaultValue;
         }
 
-        String valueStr = mDiskCache.getString(key);
+        Object pending = getPendingWrite(key);
+        TXPrimitivePage.Value primitive = findPrimitive(key, pending);
+        if (primitive != null && primitive.type == TXPrimitivePage.TYPE_INT) {
+            return (int) primitive.bits;
+        }
+
+        String valueStr = findString(key, pending, primitive);
         if (TextUtils.isEmpty(valueStr)) {
             return defaultValue;
         }
@@ -123,7 +252,13 @@ public class TXUserCache implements TXBaseCacheInterface {
             return defaultValue;
         }
 
-        String valueStr = mDiskCache.getString(key);
+        Object pending = getPendingWrite(key);
+        TXPrimitivePage.Value primitive = findPrimitive(key, pending);
+        if (primitive != null && primitive.type == TXPrimitivePage.TYPE_LONG) {
+            return primitive.bits;
+        }
+
+        String valueStr = findString(key, pending, primitive);
         if (TextUtils.isEmpty(valueStr)) {
             return defaultValue;
         }
@@ -144,7 +279,13 @@ public class TXUserCache implements TXBaseCacheInterface {
             return defaultValue;
         }
 
-        String valueStr = mDiskCache.getString(key);
+        Object pending = getPendingWrite(key);
+        TXPrimitivePage.Value primitive = findPrimitive(key, pending);
+        if (primitive != null && primitive.type == TXPrimitivePage.TYPE_FLOAT) {
+            return Float.intBitsToFloat((int) primitive.bits);
+        }
+
+        String valueStr = findString(key, pending, primitive);
         if (TextUtils.isEmpty(valueStr)) {
             return defaultValue;
         }
@@ -165,25 +306,101 @@ public class TXUserCache implements TXBaseCacheInterface {
             return null;
         }
 
-        String valueStr = getString(key, null);
+        Object pending = getPendingWrite(key);
+        if (pending != null) {
+            String valueStr = pendingString(pending);
+            return TextUtils.isEmpty(valueStr) ? null : TXJsonUtil.getModel(valueStr, clazz);
+        }
+
+        Object cached = getCachedModel(key, clazz);
+        if (cached != null) {
+            return clazz.cast(cached);
+        }
+
+        long version = memoryVersion();
+        String valueStr = mMemoryCache.get(key);
+        if (valueStr == null) {
+            DiskCache.InputStreamEntry entry = mDiskCache.getInputStreamWithMeta(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                if (isLargeValue(entry)) {
+                    return TXJsonUtil.getModel(entry.getInputStream(), clazz);
+                }
+                // 直接读取已打开的数据, 不再重新查找
+                valueStr = loadString(key, entry, version);
+            } finally {
+                entry.close();
+            }
+        }
         if (TextUtils.isEmpty(valueStr)) {
             return null;
         }
 
-        return TXJsonUtil.getModel(valueStr, clazz);
+        T model = TXJsonUtil.getModel(valueStr, clazz);
+        cacheModel(key, clazz, model, valueStr, version);
+        return model;
     }
 
+    /**
+     * 开启model缓存时返回的list是新的, 但其中的model是共享的
+     */
     public <T extends TXDataModel> List<T> getModelList(String key, @NonNull Type typeOfT) {
         if (!mInitSucc || TextUtils.isEmpty(key)) {
             return null;
         }
 
-        String valueStr = getString(key, null);
+        Object pending = getPendingWrite(key);
+        if (pending != null) {
+            String valueStr = pendingString(pending);
+            return TextUtils.isEmpty(valueStr) ? null : TXJsonUtil.<T>getModelList(valueStr, typeOfT);
+        }
+
+        Object cached = getCachedModel(key, typeOfT);
+        if (cached != null) {
+            @SuppressWarnings("unchecked")
+            List<T> list = (List<T>) cached;
+            return new ArrayList<T>(list);
+        }
+
+        long version = memoryVersion();
+        String valueStr = mMemoryCache.get(key);
+        if (valueStr == null) {
+            DiskCache.InputStreamEntry entry = mDiskCache.getInputStreamWithMeta(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                if (isLargeValue(entry)) {
+                    return TXJsonUtil.getModelList(entry.getInputStream(), typeOfT);
+                }
+                // 直接读取已打开的数据, 不再重新查找
+                valueStr = loadString(key, entry, version);
+            } finally {
+                entry.close();
+            }
+        }
         if (TextUtils.isEmpty(valueStr)) {
             return null;
         }
 
-        return TXJsonUtil.getModelList(valueStr, typeOfT);
+        List<T> modelList = TXJsonUtil.getModelList(valueStr, typeOfT);
+        if (modelList != null) {
+            cacheModel(key, typeOfT, new ArrayList<T>(modelList), valueStr, version);
+        }
+        return modelList;
+    }
+
+    /**
+     * 是否缓存getModel, getModelList解析后的对象, 默认关闭.
+     * 开启后同一个key多次读取返回的是同一个对象, 调用方不能修改返回的model, 修改需要重新putModel.
+     */
+    public void setModelCacheEnabled(boolean enabled) {
+        mModelCacheEnabled = enabled;
+        if (!enabled) {
+            mModelCache.evictAll();
+        }
     }
 
     @Override
@@ -192,7 +409,12 @@ public class TXUserCache implements TXBaseCacheInterface {
             return false;
         }
 
-        return mDiskCache.contains(key);
+        Object pending = getPendingWrite(key);
+        if (pending != null) {
+            return pending != REMOVED;
+        }
+
+        return mPrimitivePage.contains(key) || mMemoryCache.get(key) != null || mDiskCache.contains(key);
     }
 
     @Override
@@ -201,7 +423,13 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
+        if (enqueueWrite(key, REMOVED)) {
+            return;
+        }
+
+        mPrimitivePage.remove(key);
         mDiskCache.delete(key);
+        updateMemory(key, null);
     }
 
     @Override
@@ -210,7 +438,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        mDiskCache.put(key, value);
+        writeString(key, value);
     }
 
     @Override
@@ -219,7 +447,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        mDiskCache.put(key, String.valueOf(value));
+        writePrimitive(key, TXPrimitivePage.TYPE_BOOLEAN, value ? 1 : 0);
     }
 
     @Override
@@ -228,7 +456,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        mDiskCache.put(key, String.valueOf(value));
+        writePrimitive(key, TXPrimitivePage.TYPE_INT, value);
     }
 
     @Override
@@ -237,7 +465,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        mDiskCache.put(key, String.valueOf(value));
+        writePrimitive(key, TXPrimitivePage.TYPE_LONG, value);
     }
 
     @Override
@@ -246,7 +474,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        mDiskCache.put(key, String.valueOf(value));
+        writePrimitive(key, TXPrimitivePage.TYPE_FLOAT, Float.floatToIntBits(value));
     }
 
     public <T extends TXDataModel> void putModel(String key, T model) {
@@ -254,12 +482,7 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        String valueStr = TXJsonUtil.parse(model);
-        if (TextUtils.isEmpty(valueStr)) {
-            return;
-        }
-
-        putString(key, valueStr);
+        writeModel(key, model);
     }
 
     public <T extends TXDataModel> void putModelList(String key, List<T> modelList) {
@@ -267,15 +490,535 @@ public class TXUserCache implements TXBaseCacheInterface {
             return;
         }
 
-        String valueStr = TXJsonUtil.parse(modelList);
-        if (TextUtils.isEmpty(valueStr)) {
+        writeModel(key, modelList);
+    }
+
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (!mInitSucc || keys == null) {
+            return result;
+        }
+
+        for (String key : keys) {
+            if (TextUtils.isEmpty(key)) {
+                continue;
+            }
+            Object pending = getPendingWrite(key);
+            TXPrimitivePage.Value primitive = findPrimitive(key, pending);
+            if (primitive != null) {
+                result.put(key, primitive.box());
+                continue;
+            }
+            String value = findString(key, pending, null);
+            if (!TextUtils.isEmpty(value)) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values) {
+        if (!mInitSucc || values == null || values.isEmpty()) {
             return;
         }
 
-        putString(key, valueStr);
+        ((TXCacheEditor) edit()).putAll(values).apply();
+    }
+
+    /**
+     * 基本类型数据只写一次数据页, 字符串数据的日志由DiskCache批量刷盘
+     */
+    @Override
+    public TXBaseCacheInterface.Editor edit() {
+        return new TXCacheEditor() {
+            @Override
+            void commit(Map<String, Object> changes) {
+                applyChanges(changes);
+            }
+        };
     }
 
     public void clear() {
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+            mPendingWrites.notifyAll();
+        }
+        // 等待正在写入的一批完成, 避免清空后又写入旧数据
+        flush();
         mDiskCache.clear();
+        mPrimitivePage.clear();
+        synchronized (mMemoryCache) {
+            mMemoryVersion++;
+            mMemoryCache.evictAll();
+            mModelCache.evictAll();
+        }
+    }
+
+    /**
+     * 是否开启异步写入, 默认关闭. 开启后putModel, putModelList的对象在写入DiskCache前不能修改.
+     * 关闭时先写入所有未写入的修改.
+     */
+    public void setWriteBehindEnabled(boolean enabled) {
+        mWriteBehindEnabled = enabled;
+        if (!enabled) {
+            flush();
+        }
+    }
+
+    /**
+     * 立即把所有未写入的修改写入DiskCache和数据页文件, 写完后返回
+     */
+    public void flush() {
+        try {
+            mWriteExecutor.submit(mFlushRunnable).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "catch exception when flush, e:" + e.getCause());
+        }
+    }
+
+    /**
+     * @return 内存缓存命中次数
+     */
+    public int getMemoryHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    /**
+     * @return 内存缓存未命中次数, 未命中时从DiskCache读取
+     */
+    public int getMemoryMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    /**
+     * 先读内存缓存, 没有时读DiskCache并放入内存缓存
+     */
+    private String readString(String key) {
+        String value = mMemoryCache.get(key);
+        if (value != null) {
+            return value;
+        }
+        return loadString(key);
+    }
+
+    /**
+     * 读DiskCache并放入内存缓存
+     */
+    private String loadString(String key) {
+        long version = memoryVersion();
+        String value = mDiskCache.getString(key);
+        cacheLoadedString(key, value, version);
+        return value;
+    }
+
+    /**
+     * 从已打开的数据中读取字符串, 放入内存缓存
+     *
+     * @param version 打开数据前的memoryVersion()
+     */
+    private String loadString(String key, DiskCache.InputStreamEntry entry, long version) {
+        String value;
+        try {
+            value = entry.getString();
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when read string, key:" + key + " e:" + e.getMessage());
+            return null;
+        }
+        cacheLoadedString(key, value, version);
+        return value;
+    }
+
+    private void cacheLoadedString(String key, String value, long version) {
+        if (!TextUtils.isEmpty(value) && sizeOfEntry(key, value) <= MEMORY_MAX_ENTRY_SIZE) {
+            synchronized (mMemoryCache) {
+                if (version == mMemoryVersion) {
+                    mMemoryCache.put(key, value);
+                }
+            }
+        }
+    }
+
+    private void writeString(String key, String value) {
+        if (enqueueWrite(key, value)) {
+            return;
+        }
+
+        mPrimitivePage.remove(key);
+        // 写入失败时DiskCache中的旧数据已不可信, 内存中也删除
+        boolean success = mDiskCache.put(key, value);
+        updateMemory(key, success ? value : null);
+    }
+
+    /**
+     * 批量修改, 和单个修改的结果一致: 空字符串忽略, 基本类型写入数据页, 其他写入DiskCache
+     *
+     * @param changes 值为null表示删除
+     */
+    private void applyChanges(Map<String, Object> changes) {
+        if (!mInitSucc) {
+            return;
+        }
+
+        if (mWriteBehindEnabled) {
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object value = entry.getValue();
+                TXPrimitivePage.Value primitive = TXPrimitivePage.Value.of(value);
+                if (value == null) {
+                    enqueueWrite(entry.getKey(), REMOVED);
+                } else if (primitive != null) {
+                    enqueueWrite(entry.getKey(), primitive);
+                } else if (!TextUtils.isEmpty((String) value)) {
+                    enqueueWrite(entry.getKey(), value);
+                }
+            }
+            return;
+        }
+
+        applyChangesNow(changes);
+    }
+
+    private void applyChangesNow(Map<String, Object> changes) {
+        Map<String, TXPrimitivePage.Value> primitives = new HashMap<String, TXPrimitivePage.Value>();
+        Map<String, String> strings = new LinkedHashMap<String, String>();
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            TXPrimitivePage.Value primitive = TXPrimitivePage.Value.of(value);
+            if (value == null) {
+                removed.add(key);
+            } else if (primitive != null && TXPrimitivePage.accepts(key)) {
+                primitives.put(key, primitive);
+            } else if (primitive != null) {
+                strings.put(key, primitive.toString());
+            } else if (!TextUtils.isEmpty((String) value)) {
+                strings.put(key, (String) value);
+            }
+        }
+
+        List<String> removedFromPage = new ArrayList<String>(removed);
+        removedFromPage.addAll(strings.keySet());
+        // 以前保存的字符串数据在数据页写入文件后删除
+        mPrimitivePage.apply(primitives, removedFromPage);
+
+        for (String key : removed) {
+            mDiskCache.delete(key);
+            updateMemory(key, null);
+        }
+        for (String key : primitives.keySet()) {
+            updateMemory(key, null);
+        }
+        for (Map.Entry<String, String> entry : strings.entrySet()) {
+            boolean success = mDiskCache.put(entry.getKey(), entry.getValue());
+            updateMemory(entry.getKey(), success ? entry.getValue() : null);
+        }
+    }
+
+    /**
+     * 写入基本类型数据页, 该key以前保存的字符串数据在数据页写入文件后删除
+     */
+    private void writePrimitive(String key, byte type, long bits) {
+        if (enqueueWrite(key, new TXPrimitivePage.Value(type, bits))) {
+            return;
+        }
+
+        if (!TXPrimitivePage.accepts(key)) {
+            writeString(key, new TXPrimitivePage.Value(type, bits).toString());
+            return;
+        }
+
+        mPrimitivePage.put(key, type, bits);
+        updateMemory(key, null);
+    }
+
+    /**
+     * 数据页写入文件后删除这些key以前保存的字符串数据, 写入失败时保留, 读取时数据页中恢复的旧数据优先.
+     * 删除时在DiskCache中key的锁中检查, 期间又写入字符串的key不删除
+     */
+    private static TXPrimitivePage.Listener newPageListener(final DiskCache diskCache) {
+        return new TXPrimitivePage.Listener() {
+            @Override
+            public void onSaved(final TXPrimitivePage page, Map<String, TXPrimitivePage.Value> saved) {
+                for (final Map.Entry<String, TXPrimitivePage.Value> entry : saved.entrySet()) {
+                    diskCache.deleteIf(entry.getKey(), new DiskCache.DeleteCondition() {
+                        @Override
+                        public boolean shouldDelete() {
+                            return page.get(entry.getKey()) == entry.getValue();
+                        }
+                    });
+                }
+            }
+        };
+    }
+
+    /**
+     * json直接写入DiskCache的文件, 不生成中间的字符串.
+     * 写入成功后内存缓存中没有对应的字符串, 只删除旧数据, 下次读取时再加载.
+     */
+    private void writeModel(String key, Object model) {
+        if (enqueueWrite(key, new PendingModel(model))) {
+            return;
+        }
+
+        writeModelNow(key, model);
+    }
+
+    private void writeModelNow(String key, final Object model) {
+        mPrimitivePage.remove(key);
+        boolean success = mDiskCache.put(key, new DiskCache.ValueWriter() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                TXJsonUtil.parse(model, model.getClass(), os);
+            }
+        });
+        if (!success) {
+            Log.e(TAG, "put model fail, key:" + key);
+        }
+        updateMemory(key, null);
+    }
+
+    /**
+     * 异步写入时加入未写入的修改, 同一个key只保留最后一次
+     *
+     * @return 是否已加入, 未开启异步写入时返回false, 由调用方直接写入
+     */
+    private boolean enqueueWrite(String key, Object value) {
+        if (!mWriteBehindEnabled) {
+            return false;
+        }
+
+        synchronized (mPendingWrites) {
+            while (mPendingWrites.size() >= WRITE_BEHIND_MAX_PENDING && !mPendingWrites.containsKey(key)) {
+                scheduleDrain();
+                try {
+                    mPendingWrites.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // 重新加入, 保持最后一次修改的顺序
+            mPendingWrites.remove(key);
+            mPendingWrites.put(key, value);
+            scheduleDrain();
+        }
+        // 内存缓存中的旧数据不再有效, 写入DiskCache后再更新
+        updateMemory(key, null);
+        return true;
+    }
+
+    /**
+     * 队列满时立即写入, 否则等待合并窗口结束
+     */
+    private void scheduleDrain() {
+        if (mPendingWrites.isEmpty()) {
+            return;
+        }
+        boolean full = mPendingWrites.size() >= WRITE_BEHIND_MAX_PENDING;
+        if (mDrainFuture != null && full && mDrainFuture.getDelay(TimeUnit.MILLISECONDS) > 0) {
+            mDrainFuture.cancel(false);
+            mDrainFuture = null;
+        }
+        if (mDrainFuture == null) {
+            mDrainFuture = mWriteExecutor.schedule(mDrainRunnable,
+                    full ? 0 : WRITE_BEHIND_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 在写入线程把当前所有未写入的修改写入DiskCache.
+     * 写入并更新内存缓存后才从未写入的修改中删除, 期间读取不会读到旧数据.
+     * 抛出异常的修改不删除, 稍后重试.
+     */
+    private void drainPendingWrites() {
+        Map<String, Object> batch;
+        synchronized (mPendingWrites) {
+            if (mDrainFuture != null) {
+                mDrainFuture.cancel(false);
+                mDrainFuture = null;
+            }
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<String, Object>(mPendingWrites);
+        }
+
+        Set<String> written = new HashSet<String>();
+        try {
+            Map<String, Object> changes = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof PendingModel) {
+                    try {
+                        writeModelNow(entry.getKey(), ((PendingModel) value).model);
+                        written.add(entry.getKey());
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "catch exception when write model, key:" + entry.getKey() + " e:" + e);
+                    }
+                } else if (value instanceof TXPrimitivePage.Value) {
+                    changes.put(entry.getKey(), ((TXPrimitivePage.Value) value).box());
+                } else {
+                    changes.put(entry.getKey(), value == REMOVED ? null : value);
+                }
+            }
+            applyChangesNow(changes);
+            written.addAll(changes.keySet());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "catch exception when drain pending writes, count:" + batch.size() + " e:" + e);
+        } finally {
+            synchronized (mPendingWrites) {
+                // 只删除已写入的, 写入期间又修改过的key留到下一批
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    if (written.contains(entry.getKey()) && mPendingWrites.get(entry.getKey()) == entry.getValue()) {
+                        mPendingWrites.remove(entry.getKey());
+                    }
+                }
+                mPendingWrites.notifyAll();
+                if (written.size() < batch.size() && mDrainFuture == null) {
+                    mDrainFuture = mWriteExecutor.schedule(mDrainRunnable,
+                            WRITE_BEHIND_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                } else {
+                    scheduleDrain();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 未写入的修改, 没有时返回null
+     */
+    private Object getPendingWrite(String key) {
+        synchronized (mPendingWrites) {
+            return mPendingWrites.get(key);
+        }
+    }
+
+    /**
+     * 未写入的修改对应的字符串, 删除时返回null
+     */
+    private static String pendingString(Object pending) {
+        if (pending == REMOVED) {
+            return null;
+        } else if (pending instanceof PendingModel) {
+            return TXJsonUtil.parse(((PendingModel) pending).model);
+        }
+        return pending.toString();
+    }
+
+    /**
+     * 先读未写入的修改, 没有时读数据页
+     */
+    private TXPrimitivePage.Value findPrimitive(String key, Object pending) {
+        if (pending == null) {
+            return mPrimitivePage.get(key);
+        }
+        return pending instanceof TXPrimitivePage.Value ? (TXPrimitivePage.Value) pending : null;
+    }
+
+    /**
+     * @param primitive findPrimitive的结果
+     */
+    private String findString(String key, Object pending, TXPrimitivePage.Value primitive) {
+        if (primitive != null) {
+            return primitive.toString();
+        } else if (pending != null) {
+            return pendingString(pending);
+        }
+        return readString(key);
+    }
+
+    /**
+     * 放不进内存缓存的数据直接从文件流解析, 不读成字符串
+     */
+    private static boolean isLargeValue(DiskCache.InputStreamEntry entry) {
+        return entry.getLength() * 2 > MEMORY_MAX_ENTRY_SIZE;
+    }
+
+    /**
+     * DiskCache修改后更新内存缓存
+     *
+     * @param value 为null时表示删除
+     */
+    private void updateMemory(String key, String value) {
+        synchronized (mMemoryCache) {
+            mMemoryVersion++;
+            mModelCache.remove(key);
+            if (value == null || sizeOfEntry(key, value) > MEMORY_MAX_ENTRY_SIZE) {
+                mMemoryCache.remove(key);
+            } else {
+                mMemoryCache.put(key, value);
+            }
+        }
+    }
+
+    private static int sizeOfEntry(String key, String value) {
+        return (key.length() + value.length()) * 2;
+    }
+
+    private long memoryVersion() {
+        synchronized (mMemoryCache) {
+            return mMemoryVersion;
+        }
+    }
+
+    private Object getCachedModel(String key, Type type) {
+        if (!mModelCacheEnabled) {
+            return null;
+        }
+
+        ModelEntry entry = mModelCache.get(key);
+        if (entry == null || !entry.type.equals(type)) {
+            return null;
+        }
+        return entry.model;
+    }
+
+    /**
+     * @param version 读取json字符串之前的版本, 期间有修改时不缓存
+     */
+    private void cacheModel(String key, Type type, Object model, String valueStr, long version) {
+        if (!mModelCacheEnabled || model == null) {
+            return;
+        }
+
+        int size = sizeOfEntry(key, valueStr);
+        if (size > MEMORY_MAX_ENTRY_SIZE) {
+            return;
+        }
+        synchronized (mMemoryCache) {
+            if (version == mMemoryVersion) {
+                mModelCache.put(key, new ModelEntry(type, model, size));
+            }
+        }
+    }
+
+    /**
+     * 异步写入时未写入的model, 写入时再生成json
+     */
+    private static class PendingModel {
+        final Object model;
+
+        PendingModel(Object model) {
+            this.model = model;
+        }
+    }
+
+    /**
+     * 解析后的model和解析时的类型
+     */
+    private static class ModelEntry {
+        final Type type;
+        final Object model;
+        final int size;
+
+        ModelEntry(Type type, Object model, int size) {
+            this.type = type;
+            this.model = model;
+            this.size = size;
+        }
     }
 }
@@ -0,0 +1,456 @@
+package com.cc.utils.base;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.cc.utils.manager.TXBackgroundThreadFactory;
+import com.cc.utils.model.TXDataModel;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link TXUserCache}的异步接口, 读写在单独的IO线程执行, 不阻塞调用线程.
+ * <p>
+ * 所有操作按提交顺序执行, 先提交的写入对后提交的读取可见.
+ * 还没有执行的相同读取合并为一次, 结果回调给所有调用方.
+ * 每个调用方拿到自己的Future, 取消只影响自己, 所有调用方都取消后才取消读取.
+ * 写入不会被丢弃. 未完成的读取太多时新的读取不会阻塞, 返回的Future以RejectedExecutionException失败,
+ * 读取失败时回调默认值, 基本类型的回调结果不会为null.
+ * <p>
+ * 回调在主线程执行, 同时返回Future, 可以不传回调直接等待结果.
+ */
+public class TXUserCacheAsync {
+
+    private static final String TAG = "TXUserCacheAsync";
+
+    // 未完成的读取最多这么多个, 写入不限制
+    private static final int MAX_PENDING_READS = 256;
+    // 没有读写时线程空闲这么久后退出
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final TXUserCache mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // 还没有完成的读取, key为读取的类型, key和默认值
+    private final Map<String, Task<?>> mPendingReads = new HashMap<String, Task<?>>();
+    // 已提交还没有完成的读取数, 由mPendingReads同步
+    private int mPendingReadCount;
+
+    /**
+     * 异步操作的结果回调, 在主线程执行
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static class InstanceHolder {
+        public final static TXUserCacheAsync instance = new TXUserCacheAsync(TXUserCache.getInstance());
+    }
+
+    public static TXUserCacheAsync getInstance() {
+        return InstanceHolder.instance;
+    }
+
+    private TXUserCacheAsync(TXUserCache cache) {
+        mCache = cache;
+        // 只有一个线程, 保证按提交顺序执行. 队列不限长度, 写入不会被拒绝, 读取的数量在提交前限制
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new TXBackgroundThreadFactory(TAG));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Future<String> getStringAsync(final String key, final String defaultValue,
+                                         @Nullable Callback<String> callback) {
+        return read("string", key, defaultValue, defaultValue, new Callable<String>() {
+            @Override
+            public String call() {
+                return mCache.getString(key, defaultValue);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> getBooleanAsync(final String key, final boolean defaultValue,
+                                           @Nullable Callback<Boolean> callback) {
+        return read("boolean", key, defaultValue, defaultValue, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mCache.getBoolean(key, defaultValue);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> getIntAsync(final String key, final int defaultValue,
+                                       @Nullable Callback<Integer> callback) {
+        return read("int", key, defaultValue, defaultValue, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mCache.getInt(key, defaultValue);
+            }
+        }, callback);
+    }
+
+    public Future<Long> getLongAsync(final String key, final long defaultValue,
+                                     @Nullable Callback<Long> callback) {
+        return read("long", key, defaultValue, defaultValue, new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mCache.getLong(key, defaultValue);
+            }
+        }, callback);
+    }
+
+    public Future<Float> getFloatAsync(final String key, final float defaultValue,
+                                       @Nullable Callback<Float> callback) {
+        return read("float", key, defaultValue, defaultValue, new Callable<Float>() {
+            @Override
+            public Float call() {
+                return mCache.getFloat(key, defaultValue);
+            }
+        }, callback);
+    }
+
+    public <T extends TXDataModel> Future<T> getModelAsync(final String key, @NonNull final Class<T> clazz,
+                                                           @Nullable Callback<T> callback) {
+        return read("model", key, clazz.getName(), null, new Callable<T>() {
+            @Override
+            public T call() {
+                return mCache.getModel(key, clazz);
+            }
+        }, callback);
+    }
+
+    public <T extends TXDataModel> Future<List<T>> getModelListAsync(final String key, @NonNull final Type typeOfT,
+                                                                     @Nullable Callback<List<T>> callback) {
+        return read("modelList", key, typeOfT.toString(), null, new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return mCache.getModelList(key, typeOfT);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> containsAsync(final String key, @Nullable Callback<Boolean> callback) {
+        return read("contains", key, null, false, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mCache.contains(key);
+            }
+        }, callback);
+    }
+
+    public Future<Void> putStringAsync(final String key, final String value, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putString(key, value);
+            }
+        }, callback);
+    }
+
+    public Future<Void> putBooleanAsync(final String key, final boolean value, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putBoolean(key, value);
+            }
+        }, callback);
+    }
+
+    public Future<Void> putIntAsync(final String key, final int value, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putInt(key, value);
+            }
+        }, callback);
+    }
+
+    public Future<Void> putLongAsync(final String key, final long value, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putLong(key, value);
+            }
+        }, callback);
+    }
+
+    public Future<Void> putFloatAsync(final String key, final float value, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putFloat(key, value);
+            }
+        }, callback);
+    }
+
+    public <T extends TXDataModel> Future<Void> putModelAsync(final String key, final T model,
+                                                              @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putModel(key, model);
+            }
+        }, callback);
+    }
+
+    public <T extends TXDataModel> Future<Void> putModelListAsync(final String key, final List<T> modelList,
+                                                                  @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.putModelList(key, modelList);
+            }
+        }, callback);
+    }
+
+    public Future<Void> removeAsync(final String key, @Nullable Callback<Void> callback) {
+        return write(key, new Runnable() {
+            @Override
+            public void run() {
+                mCache.remove(key);
+            }
+        }, callback);
+    }
+
+    /**
+     * 提交读取, 有相同的读取还没有完成时合并. 未完成的读取太多时直接失败
+     *
+     * @param kind     读取的类型, 和key, 参数一起决定是否可以合并
+     * @param fallback 读取失败时回调的结果
+     */
+    private <T> Future<T> read(String kind, String key, Object arg, T fallback, Callable<T> callable,
+                               Callback<T> callback) {
+        String readKey = kind + '\u0000' + key + '\u0000' + arg;
+        Task<T> task;
+        Caller<T> caller;
+        synchronized (mPendingReads) {
+            @SuppressWarnings("unchecked")
+            Task<T> pending = (Task<T>) mPendingReads.get(readKey);
+            if (pending != null) {
+                caller = pending.addCaller(callback);
+                if (caller != null) {
+                    return caller;
+                }
+            }
+            task = new Task<T>(key, readKey, callable, fallback);
+            caller = task.addCaller(callback);
+            if (mPendingReadCount < MAX_PENDING_READS) {
+                mPendingReadCount++;
+                task.counted = true;
+                mPendingReads.put(readKey, task);
+            }
+        }
+        if (task.counted) {
+            submit(task);
+        } else {
+            Log.e(TAG, "too many pending reads, reject key:" + key);
+            task.reject(new RejectedExecutionException("too many pending reads"));
+        }
+        return caller;
+    }
+
+    /**
+     * 提交写入, 之前提交的相同key的读取不再合并, 之后的读取会读到这次写入
+     */
+    private Future<Void> write(String key, Runnable runnable, Callback<Void> callback) {
+        synchronized (mPendingReads) {
+            Iterator<Task<?>> iterator = mPendingReads.values().iterator();
+            while (iterator.hasNext()) {
+                Task<?> task = iterator.next();
+                if (task.key != null && task.key.equals(key)) {
+                    iterator.remove();
+                }
+            }
+        }
+        Task<Void> task = new Task<Void>(key, null, Executors.callable(runnable, (Void) null), null);
+        Caller<Void> caller = task.addCaller(callback);
+        submit(task);
+        return caller;
+    }
+
+    private void submit(Task<?> task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 队列不限长度, 线程池也不会关闭, 正常不会发生
+            Log.e(TAG, "reject task, key:" + task.key);
+            task.reject(e);
+        }
+    }
+
+    /**
+     * 一次读取或写入, 合并的读取共用一个. 完成后在主线程回调所有没有取消的调用方
+     */
+    private class Task<T> extends FutureTask<T> {
+        final String key;
+        private final String readKey;
+        private final T fallback;
+        private final List<Caller<T>> callers = new ArrayList<Caller<T>>(1);
+        private boolean delivered;
+        // 是否计入mPendingReadCount, 由mPendingReads同步
+        boolean counted;
+
+        Task(String key, String readKey, Callable<T> callable, T fallback) {
+            super(callable);
+            this.key = key;
+            this.readKey = readKey;
+            this.fallback = fallback;
+        }
+
+        /**
+         * @return 新的调用方, 已经完成或取消时返回null
+         */
+        synchronized Caller<T> addCaller(Callback<T> callback) {
+            if (delivered) {
+                return null;
+            }
+            Caller<T> caller = new Caller<T>(this, callback);
+            callers.add(caller);
+            return caller;
+        }
+
+        /**
+         * 调用方取消, 所有调用方都取消后取消任务
+         *
+         * @return 调用方是否取消成功, 已经完成时返回false
+         */
+        boolean cancel(Caller<T> caller, boolean mayInterruptIfRunning) {
+            boolean cancelAll;
+            synchronized (this) {
+                if (delivered || !callers.remove(caller)) {
+                    return false;
+                }
+                cancelAll = callers.isEmpty();
+            }
+            if (cancelAll) {
+                cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (readKey != null) {
+                synchronized (mPendingReads) {
+                    if (mPendingReads.get(readKey) == this) {
+                        mPendingReads.remove(readKey);
+                    }
+                    if (counted) {
+                        counted = false;
+                        mPendingReadCount--;
+                    }
+                }
+            }
+
+            final List<Callback<T>> toDeliver = new ArrayList<Callback<T>>();
+            synchronized (this) {
+                delivered = true;
+                for (Caller<T> caller : callers) {
+                    if (caller.callback != null) {
+                        toDeliver.add(caller.callback);
+                    }
+                }
+            }
+            if (toDeliver.isEmpty()) {
+                return;
+            }
+
+            T result = fallback;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "catch exception when run task, key:" + key + " e:" + e.getCause());
+            } catch (CancellationException e) {
+                Log.d(TAG, "task cancelled, key:" + key);
+            }
+            final T value = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback<T> callback : toDeliver) {
+                        callback.onResult(value);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 返回给每个调用方的Future, 取消时只取消自己, 不影响合并的其他调用方
+     */
+    private static class Caller<T> implements Future<T> {
+        private final Task<T> task;
+        final Callback<T> callback;
+        private volatile boolean cancelled;
+
+        Caller(Task<T> task, Callback<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (cancelled) {
+                return false;
+            }
+            if (!task.cancel(this, mayInterruptIfRunning)) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || task.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            checkCancelled();
+            return task.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            checkCancelled();
+            return task.get(timeout, unit);
+        }
+
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.cc.utils.manager;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.cc.utils.base.TXUserCache;
 
 import java.io.File;
 import java.util.concurrent.TimeUnit;
@@ -16,11 +20,34 @@ public class TXCacheManager {
 
     // 最小可用空间,当系统剩余缓存空间不足20M时,提示用户空间不足
     private static final long MIN_USABLE_SPACE = 1024 * 1024 * 20;
-    // 最长保存时间
+    // 最长保存时间, 可以通过setMaxSaveTime按类型修改
     private static final long MAX_SAVE_TIME = TimeUnit.DAYS.toMillis(10);
 
     private Context mContext;
     private File mCacheDir;
+    private final TXSpaceAccountant mSpaceAccountant = new TXSpaceAccountant();
+    private final TXExpirySweeper mExpirySweeper = new TXExpirySweeper(MAX_SAVE_TIME);
+    // 后台删除完成后重新统计已使用空间
+    private final TXFileDeleter.OnDeleteListener mInvalidateOnDeleted = new TXFileDeleter.OnDeleteListener() {
+        @Override
+        public void onProgress(int deletedCount) {
+        }
+
+        @Override
+        public void onComplete(boolean success, int deletedCount) {
+            mSpaceAccountant.invalidate();
+        }
+    };
+
+    /**
+     * 自己记录占用空间的缓存, 如DiskCache, 统计已使用缓存空间时不再遍历其目录
+     */
+    public interface ManagedCache {
+        /**
+         * @return 占用的字节数, 需要能快速返回
+         */
+        long size();
+    }
 
     private static class InstanceHolder {
         public final static TXCacheManager instance = new TXCacheManager();
@@ -37,6 +64,9 @@ public class TXCacheManager {
 
         mContext = context.getApplicationContext();
         mCacheDir = TXFileManager.getCacheDir(mContext);
+        // 上次退出前没有删完的数据
+        TXFileManager.emptyTrash(mCacheDir);
+        TXFileManager.emptyTrash(TXFileManager.getFileDir(mContext));
     }
 
     public File getCacheDir() {
@@ -81,6 +111,9 @@ public class TXCacheManager {
 
     /**
      * 获取已使用缓存空间,只提供可删除的空间大小
+     * <p>
+     * 第一次调用时遍历目录, 之后返回保存的结果, 直到{@link #invalidateCacheUsedSpace()}.
+     * 注册过的缓存使用其记录的大小. 第一次调用可能较慢, 不要在主线程调用.
      *
      * @return
      */
@@ -93,86 +126,138 @@ public class TXCacheManager {
             return 0;
         }
 
-        long cacheDirSize = getFolderSize(mCacheDir);
-        long fileDirSize = getFolderSize(TXFileManager.getFileDir(mContext));
+        long cacheDirSize = mSpaceAccountant.getSize(mCacheDir);
+        long fileDirSize = mSpaceAccountant.getSize(TXFileManager.getFileDir(mContext));
 
         return cacheDirSize + fileDirSize;
     }
 
+    /**
+     * 在缓存目录或文件目录中直接写入或删除文件后调用, 下次getCacheUsedSpace时重新统计
+     */
+    public void invalidateCacheUsedSpace() {
+        mSpaceAccountant.invalidate();
+    }
+
+    /**
+     * 注册自己记录占用空间的缓存目录
+     *
+     * @param dir   缓存目录
+     * @param cache 缓存大小
+     */
+    public void registerManagedCache(File dir, ManagedCache cache) {
+        if (dir == null || cache == null) {
+            return;
+        }
+
+        mSpaceAccountant.register(dir, cache);
+    }
+
+    public void unregisterManagedCache(File dir) {
+        if (dir == null) {
+            return;
+        }
+
+        mSpaceAccountant.unregister(dir);
+    }
+
     /**
      * 清除缓存,主要是外部缓存
+     * <p>
+     * 目录先移动到回收目录后立即返回, 在后台删除
      */
     public void clearCaches() {
-//        if (mCacheDir != null && mCacheDir.exists() && mCacheDir.isDirectory()) {
-//            File[] files = mCacheDir.listFiles();
-//            for (File file : files) {
-//                String name = file.getName();
-//                // 如果是用户缓存使用DiskCache清除,这里不清除
-//                if (name.contains(TXUserCache.TX_USER_CACHE)) {
-//                    continue;
-//                }
-//                TXFileManager.deleteDirectory(file);
-//            }
-//        }
-//
-//        clearFiles();
+        if (mCacheDir != null && mCacheDir.exists() && mCacheDir.isDirectory()) {
+            File[] files = mCacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    // 如果是用户缓存使用DiskCache清除,这里不清除
+                    if (name.contains(TXUserCache.TX_USER_CACHE) || TXFileManager.TRASH_DIR.equals(name)) {
+                        continue;
+                    }
+                    TXFileManager.deleteDirectoryInBackground(file, mInvalidateOnDeleted);
+                }
+            }
+        }
+
+        clearFiles();
 
 //        TXUserCache.getInstance().clear();
     }
 
     /**
      * 清除过期缓存文件
+     * <p>
+     * 启动后台定期清理, 延迟10秒开始, 之后每6小时一次. 删除files下Music, Pictures, Download, Logs中
+     * 最后修改时间超过最长保存时间的文件, 每次删除的数量有上限, 没有删完时1分钟后继续.
      */
     public void clearExpiredCacheFiles() {
+        clearExpiredCacheFiles(null);
+    }
+
+    /**
+     * @param listener 每次清理完成后在主线程回调, 可以为null
+     * @see #clearExpiredCacheFiles()
+     */
+    public void clearExpiredCacheFiles(final OnExpiredClearedListener listener) {
         if (mContext == null) {
             return;
         }
 
-//        new Thread(new Runnable() {
-//            @Override
-//            public void run() {
-//                try {
-//                    // 延迟执行
-//                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
-//
-//                    File fileAudioDir = TXFileManager.getFileDir(mContext, TXFileManager.TYPE_AUDIO);
-//                    if (fileAudioDir == null) {
-//                        return;
-//                    }
-//
-//                    File[] audioFiles = fileAudioDir.listFiles();
-//                    for (File file : audioFiles) {
-//                        if (file != null && file.exists() && file.isFile()) {
-//                            long l = file.lastModified();
-//                            TXDate today = new TXDate(new Date());
-//                            long milliseconds = today.getMilliseconds();
-//                            if (l + MAX_SAVE_TIME < milliseconds) {
-//                                file.delete();
-//                            }
-//                        }
-//                    }
-//
-//                    File fileImageDir = TXFileManager.getFileDir(mContext, TXFileManager.TYPE_IMAGE);
-//                    if (fileImageDir == null) {
-//                        return;
-//                    }
-//
-//                    File[] imageFiles = fileAudioDir.listFiles();
-//                    for (File file : imageFiles) {
-//                        if (file != null && file.exists() && file.isFile()) {
-//                            long l = file.lastModified();
-//                            TXDate today = new TXDate(new Date());
-//                            long milliseconds = today.getMilliseconds();
-//                            if (l + MAX_SAVE_TIME < milliseconds) {
-//                                file.delete();
-//                            }
-//                        }
-//                    }
-//                } catch (Exception e) {
-//                    e.printStackTrace();
-//                }
-//            }
-//        });
+        mExpirySweeper.start(mContext, new TXExpirySweeper.Callback() {
+            @Override
+            public void onSwept(final int fileCount, final long byteCount, final boolean finished) {
+                if (fileCount > 0) {
+                    mSpaceAccountant.invalidate();
+                }
+                if (listener == null) {
+                    return;
+                }
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCleared(fileCount, byteCount, finished);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 停止定期清理过期文件, 正在进行的清理会完成
+     */
+    public void stopClearExpiredCacheFiles() {
+        mExpirySweeper.stop();
+    }
+
+    /**
+     * 设置某个类型文件的最长保存时间, 默认10天
+     *
+     * @param type        文件类型
+     * @param maxSaveTime 毫秒, 小于等于0时不清理该类型
+     */
+    public void setMaxSaveTime(@TXFileManager.TYPE String type, long maxSaveTime) {
+        mExpirySweeper.setMaxSaveTime(type, maxSaveTime);
+    }
+
+    /**
+     * 设置每次清理过期文件最多删除的文件数和字节数, 默认500个, 100M
+     */
+    public void setExpiredClearLimit(int maxFileCount, long maxByteCount) {
+        mExpirySweeper.setLimit(maxFileCount, maxByteCount);
+    }
+
+    /**
+     * 清理过期文件的结果
+     */
+    public interface OnExpiredClearedListener {
+        /**
+         * @param fileCount 删除的文件数
+         * @param byteCount 释放的字节数
+         * @param finished  是否已删除所有过期文件, 达到单次上限时为false
+         */
+        void onCleared(int fileCount, long byteCount, boolean finished);
     }
 
     /**
@@ -283,33 +368,12 @@ public class TXCacheManager {
         File musicDir = TXFileManager.getFileDir(mContext, TXFileManager.TYPE_AUDIO);
         File downloadDir = TXFileManager.getFileDir(mContext, TXFileManager.TYPE_DOWNLOADS);
         File logDir = TXFileManager.getFileDir(mContext, TXFileManager.TYPE_LOGS);
-        TXFileManager.deleteDirectory(picDir);
-        TXFileManager.deleteDirectory(musicDir);
-        TXFileManager.deleteDirectory(downloadDir);
-        TXFileManager.deleteDirectory(logDir);
-    }
-
-    /**
-     * 获取文件目录大小
-     *
-     * @param file
-     * @return
-     */
-    private long getFolderSize(File file) {
-        if (file == null) {
-            return 0;
-        }
-
-        long size = 0;
-        File[] files = file.listFiles();
-        for (File fileItem : files) {
-            if (fileItem.isDirectory()) {
-                size += getFolderSize(fileItem);
-            } else {
-                size += fileItem.length();
-            }
-        }
-
-        return size;
+        TXFileManager.deleteDirectoryInBackground(picDir, mInvalidateOnDeleted);
+        TXFileManager.deleteDirectoryInBackground(musicDir, mInvalidateOnDeleted);
+        TXFileManager.deleteDirectoryInBackground(downloadDir, mInvalidateOnDeleted);
+        TXFileManager.deleteDirectoryInBackground(logDir, mInvalidateOnDeleted);
+        // 目录已移走, 下次获取时重新创建
+        TXFileManager.invalidateDirs();
+        mSpaceAccountant.invalidate();
     }
 }
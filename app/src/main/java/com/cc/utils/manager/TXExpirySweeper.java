@@ -0,0 +1,197 @@
+package com.cc.utils.manager;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期删除files下各类型目录中的过期文件, 在后台低优先级线程执行.
+ * <p>
+ * 文件最后修改时间超过该类型的最长保存时间即过期.
+ * 每次最多删除{@link #setLimit(int, long)}指定的文件数和字节数, 没有删完时稍后继续.
+ */
+class TXExpirySweeper {
+
+    private static final String TAG = "TXExpirySweeper";
+
+    private static final String[] TYPES = {TXFileManager.TYPE_AUDIO, TXFileManager.TYPE_IMAGE,
+            TXFileManager.TYPE_DOWNLOADS, TXFileManager.TYPE_LOGS};
+    // 启动后延迟执行, 避开启动时的IO
+    private static final long FIRST_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    // 上一次没有删完时, 到下一次的间隔
+    private static final long CONTINUE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_MAX_FILES_PER_PASS = 500;
+    private static final long DEFAULT_MAX_BYTES_PER_PASS = 1024 * 1024 * 100;
+
+    /**
+     * 每次清理完成后在清理线程回调
+     */
+    interface Callback {
+        void onSwept(int fileCount, long byteCount, boolean finished);
+    }
+
+    private final long mDefaultMaxSaveTime;
+    private final Map<String, Long> mMaxSaveTimes = new ConcurrentHashMap<String, Long>();
+    private volatile int mMaxFilesPerPass = DEFAULT_MAX_FILES_PER_PASS;
+    private volatile long mMaxBytesPerPass = DEFAULT_MAX_BYTES_PER_PASS;
+    private final ScheduledThreadPoolExecutor mExecutor =
+            new ScheduledThreadPoolExecutor(1, new TXBackgroundThreadFactory(TAG));
+    private ScheduledFuture<?> mFuture;
+    // 每次stop加1, 之前开始的清理结束后不再继续
+    private int mGeneration;
+    private Context mContext;
+    private Callback mCallback;
+
+    TXExpirySweeper(long defaultMaxSaveTime) {
+        mDefaultMaxSaveTime = defaultMaxSaveTime;
+    }
+
+    /**
+     * @param maxSaveTime 小于等于0时不清理该类型
+     */
+    void setMaxSaveTime(String type, long maxSaveTime) {
+        mMaxSaveTimes.put(type, maxSaveTime);
+    }
+
+    void setLimit(int maxFilesPerPass, long maxBytesPerPass) {
+        mMaxFilesPerPass = maxFilesPerPass;
+        mMaxBytesPerPass = maxBytesPerPass;
+    }
+
+    /**
+     * 开始定期清理, 已开始时只更新回调
+     */
+    synchronized void start(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        if (mFuture == null) {
+            schedule(FIRST_DELAY_MILLIS);
+        }
+    }
+
+    synchronized void stop() {
+        mGeneration++;
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        final int generation = mGeneration;
+        mFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sweep(generation);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweep(int generation) {
+        Context context;
+        Callback callback;
+        synchronized (this) {
+            context = mContext;
+            callback = mCallback;
+        }
+
+        long start = System.currentTimeMillis();
+        Pass pass = new Pass(start, mMaxFilesPerPass, mMaxBytesPerPass);
+        try {
+            for (String type : TYPES) {
+                long maxSaveTime = getMaxSaveTime(type);
+                if (maxSaveTime <= 0) {
+                    continue;
+                }
+                if (!pass.sweep(TXFileManager.getFileDir(context, type), maxSaveTime)) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "catch exception when sweep, e:" + e);
+        }
+        Log.d(TAG, "sweep files:" + pass.fileCount + " bytes:" + pass.byteCount + " finished:" + pass.finished
+                + " cost:" + (System.currentTimeMillis() - start));
+
+        synchronized (this) {
+            // stop后不再继续
+            if (generation == mGeneration) {
+                schedule(pass.finished ? INTERVAL_MILLIS : CONTINUE_DELAY_MILLIS);
+            }
+        }
+        if (callback != null) {
+            callback.onSwept(pass.fileCount, pass.byteCount, pass.finished);
+        }
+    }
+
+    private long getMaxSaveTime(String type) {
+        Long maxSaveTime = mMaxSaveTimes.get(type);
+        return maxSaveTime != null ? maxSaveTime : mDefaultMaxSaveTime;
+    }
+
+    /**
+     * 一次清理, 达到删除上限后停止
+     */
+    private static class Pass {
+        final long now;
+        final int maxFiles;
+        final long maxBytes;
+        int fileCount;
+        long byteCount;
+        boolean finished = true;
+
+        Pass(long now, int maxFiles, long maxBytes) {
+            this.now = now;
+            this.maxFiles = maxFiles;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * 遍历dir删除过期文件, 不递归
+         *
+         * @return 是否没有达到上限
+         */
+        boolean sweep(File dir, long maxSaveTime) {
+            if (dir == null) {
+                return true;
+            }
+
+            ArrayDeque<File> dirs = new ArrayDeque<File>();
+            dirs.push(dir);
+            while (!dirs.isEmpty()) {
+                File[] files = dirs.pop().listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        dirs.push(file);
+                        continue;
+                    }
+                    if (fileCount >= maxFiles || byteCount >= maxBytes) {
+                        finished = false;
+                        return false;
+                    }
+                    // 读取失败时为0, 不删除
+                    long lastModified = file.lastModified();
+                    if (lastModified > 0 && lastModified + maxSaveTime < now) {
+                        long length = file.length();
+                        if (file.delete()) {
+                            fileCount++;
+                            byteCount += length;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.cc.utils.manager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 删除目录, 不使用递归, 深层目录不会栈溢出.
+ * <p>
+ * 前几层子目录拆分成单独的任务在线程池中并行删除, 更深的目录在同一个任务中遍历.
+ * 目录在其中所有文件和子目录删除后再删除.
+ * <p>
+ * 可以同步删除, 也可以异步删除, 异步删除可以取消, 进度和结果在主线程回调.
+ */
+public class TXFileDeleter {
+
+    private static final String TAG = "TXFileDeleter";
+
+    // 前几层目录拆分成单独的任务并行删除
+    private static final int SPLIT_DEPTH = 2;
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // 每删除这么多个文件回调一次进度
+    private static final int PROGRESS_STEP = 256;
+
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new TXBackgroundThreadFactory(TAG));
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 删除进度和结果, 在主线程回调
+     */
+    public interface OnDeleteListener {
+        /**
+         * @param deletedCount 已删除的文件和目录数
+         */
+        void onProgress(int deletedCount);
+
+        /**
+         * @param success      是否全部删除, 取消或有文件删除失败时为false
+         * @param deletedCount 删除的文件和目录数
+         */
+        void onComplete(boolean success, int deletedCount);
+    }
+
+    private TXFileDeleter() {
+    }
+
+    /**
+     * 删除文件或目录, 删除完成后返回
+     *
+     * @return 是否全部删除, 不存在时返回true
+     */
+    public static boolean delete(File file) {
+        if (file == null || !file.exists()) {
+            return true;
+        }
+
+        Task task = new Task(file, null);
+        // 第一层在当前线程遍历, 没有子目录时不使用线程池
+        task.run();
+        task.await();
+        return task.isSuccess();
+    }
+
+    /**
+     * 在后台删除文件或目录
+     *
+     * @param listener 可以为null
+     * @return 可以用来取消或等待删除完成
+     */
+    public static Task deleteAsync(File file, @Nullable OnDeleteListener listener) {
+        final Task task = new Task(file, listener);
+        if (file == null || !file.exists()) {
+            task.finish();
+            return task;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+            }
+        });
+        return task;
+    }
+
+    private static void execute(Runnable runnable) {
+        try {
+            sExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * 一次删除
+     */
+    public static class Task {
+        private final File mRoot;
+        private final OnDeleteListener mListener;
+        private final Handler mMainHandler;
+        private final AtomicInteger mDeletedCount = new AtomicInteger();
+        private final AtomicInteger mFailedCount = new AtomicInteger();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mCancelled;
+
+        Task(File root, OnDeleteListener listener) {
+            mRoot = root;
+            mListener = listener;
+            mMainHandler = listener != null ? new Handler(Looper.getMainLooper()) : null;
+        }
+
+        /**
+         * 取消删除, 已删除的文件不能恢复, 正在删除的目录会删除完当前文件后停止
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * @return 已删除的文件和目录数
+         */
+        public int getDeletedCount() {
+            return mDeletedCount.get();
+        }
+
+        /**
+         * 等待删除完成
+         */
+        public void await() {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return 完成后是否全部删除
+         */
+        public boolean isSuccess() {
+            return isDone() && !mCancelled && mFailedCount.get() == 0;
+        }
+
+        void run() {
+            if (!mRoot.isDirectory()) {
+                deleteFile(mRoot);
+                finish();
+                return;
+            }
+
+            Node root = new Node(mRoot, null);
+            scan(root, 0);
+            complete(root);
+        }
+
+        private void fork(final Node node, final int depth) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    scan(node, depth);
+                    complete(node);
+                }
+            });
+        }
+
+        /**
+         * 删除node.dir中的文件, 浅层的子目录拆分成新任务, 深层的子目录在当前任务中删除
+         */
+        private void scan(Node node, int depth) {
+            List<File> dirs = new ArrayList<File>();
+            ArrayDeque<File> stack = new ArrayDeque<File>();
+            stack.push(node.dir);
+            while (!stack.isEmpty() && !mCancelled) {
+                File current = stack.pop();
+                File[] files = current.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (mCancelled) {
+                        break;
+                    }
+                    if (!file.isDirectory()) {
+                        deleteFile(file);
+                    } else if (current == node.dir && depth < SPLIT_DEPTH) {
+                        Node child = new Node(file, node);
+                        node.pending.incrementAndGet();
+                        fork(child, depth + 1);
+                    } else {
+                        dirs.add(file);
+                        stack.push(file);
+                    }
+                }
+            }
+            // 后加入的目录在更深层, 先删除
+            for (int i = dirs.size() - 1; i >= 0 && !mCancelled; i--) {
+                deleteFile(dirs.get(i));
+            }
+        }
+
+        /**
+         * node的一个任务完成, 全部完成后删除目录, 并通知上一层
+         */
+        private void complete(Node node) {
+            while (node != null && node.pending.decrementAndGet() == 0) {
+                if (!mCancelled) {
+                    deleteFile(node.dir);
+                }
+                if (node.parent == null) {
+                    finish();
+                }
+                node = node.parent;
+            }
+        }
+
+        private void deleteFile(File file) {
+            if (file.delete() || !file.exists()) {
+                int count = mDeletedCount.incrementAndGet();
+                if (count % PROGRESS_STEP == 0) {
+                    notifyProgress(count);
+                }
+            } else {
+                mFailedCount.incrementAndGet();
+            }
+        }
+
+        private void notifyProgress(final int count) {
+            if (mMainHandler == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(count);
+                }
+            });
+        }
+
+        void finish() {
+            mDone.countDown();
+            if (mMainHandler == null) {
+                return;
+            }
+            final boolean success = isSuccess();
+            final int count = mDeletedCount.get();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onComplete(success, count);
+                }
+            });
+        }
+    }
+
+    /**
+     * 拆分出的目录, pending为自己的任务加未完成的子目录数
+     */
+    private static class Node {
+        final File dir;
+        final Node parent;
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        Node(File dir, Node parent) {
+            this.dir = dir;
+            this.parent = parent;
+        }
+    }
+}
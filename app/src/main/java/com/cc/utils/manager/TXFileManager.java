@@ -1,6 +1,9 @@
 package com.cc.utils.manager;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -12,10 +15,15 @@ import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 文件管理，用于获取各种目录。
  * <p>
+ * 目录只在第一次获取时检测存储状态和读写权限, 之后直接返回内存中的结果,
+ * 存储卡挂载或卸载时, 或调用{@link #invalidateDirs()}后重新检测.
+ * <p>
  * Created by Cheng on 16/11/10.
  */
 public class TXFileManager {
@@ -33,6 +41,19 @@ public class TXFileManager {
     public @interface TYPE {
     }
 
+    // deleteDirectoryInBackground移动到的回收目录名
+    public static final String TRASH_DIR = ".trash";
+
+    // cache目录在sResolvedDirs中的key
+    private static final String KEY_CACHE = "";
+    // 已解析的目录, key为类型
+    private static final Map<String, File> sResolvedDirs = new ConcurrentHashMap<String, File>();
+    // 外部缓存目录是否可写, 为null时还没有检测
+    private static volatile Boolean sExternalWritable;
+    // 每次失效加1, 失效前开始的解析结果不再保存
+    private static int sGeneration;
+    private static BroadcastReceiver sStorageReceiver;
+
     /**
      * 获取缓存目录, /cache
      * 先获取外部,如果外部获取失败,获取内部缓存路径
@@ -46,15 +67,7 @@ public class TXFileManager {
             return null;
         }
 
-        File cacheDir;
-
-        cacheDir = getExternalCacheDir(context, null);
-
-        if (cacheDir == null) {
-            cacheDir = getInnerCacheDir(context, null);
-        }
-
-        return cacheDir;
+        return resolveDir(context, null);
     }
 
     /**
@@ -70,15 +83,7 @@ public class TXFileManager {
             return null;
         }
 
-        File fileDir;
-
-        fileDir = getExternalCacheDir(context, TYPE_ROOT);
-
-        if (fileDir == null) {
-            fileDir = getInnerCacheDir(context, TYPE_ROOT);
-        }
-
-        return fileDir;
+        return resolveDir(context, TYPE_ROOT);
     }
 
     /**
@@ -95,15 +100,7 @@ public class TXFileManager {
             return null;
         }
 
-        File fileDir;
-
-        fileDir = getExternalCacheDir(context, type);
-
-        if (fileDir == null) {
-            fileDir = getInnerCacheDir(context, type);
-        }
-
-        return fileDir;
+        return resolveDir(context, type);
     }
 
     /**
@@ -215,6 +212,85 @@ public class TXFileManager {
 //        return spFile;
 //    }
 
+    /**
+     * 清除已解析的目录, 下次获取时重新检测存储状态和读写权限.
+     * 存储卡挂载和卸载时会自动调用, 其他情况如权限变化后需要手动调用.
+     */
+    public static void invalidateDirs() {
+        synchronized (sResolvedDirs) {
+            sGeneration++;
+            sResolvedDirs.clear();
+            sExternalWritable = null;
+        }
+    }
+
+    /**
+     * 先读已解析的目录, 没有时先获取外部, 如果外部获取失败, 获取内部缓存路径
+     *
+     * @param type type为空获取cache目录,否则获取对应类型的files目录
+     */
+    @Nullable
+    private static File resolveDir(Context context, @TYPE String type) {
+        String key = type == null ? KEY_CACHE : type;
+        File dir = sResolvedDirs.get(key);
+        if (dir != null) {
+            return dir;
+        }
+
+        watchStorageState(context);
+        int generation;
+        synchronized (sResolvedDirs) {
+            generation = sGeneration;
+        }
+
+        dir = getExternalCacheDir(context, type);
+
+        if (dir == null) {
+            dir = getInnerCacheDir(context, type);
+        }
+
+        if (dir != null) {
+            synchronized (sResolvedDirs) {
+                if (generation == sGeneration) {
+                    sResolvedDirs.put(key, dir);
+                }
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * 监听存储卡状态变化, 变化后清除已解析的目录
+     */
+    private static synchronized void watchStorageState(Context context) {
+        if (sStorageReceiver != null) {
+            return;
+        }
+
+        Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addDataScheme("file");
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(TAG, "storage state changed " + intent.getAction());
+                invalidateDirs();
+            }
+        };
+        try {
+            appContext.registerReceiver(receiver, filter);
+            sStorageReceiver = receiver;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "watch storage state fail " + e.getMessage());
+        }
+    }
+
     /**
      * 检查SDCard是否可用
      *
@@ -240,7 +316,7 @@ public class TXFileManager {
         File cacheDir = null;
         if (hasSDCardMounted()) {
             cacheDir = context.getExternalCacheDir();
-            if (checkIfWritable(cacheDir)) {
+            if (isExternalWritable(cacheDir)) {
                 if (!TextUtils.isEmpty(type)) {
                     if (TYPE_ROOT.equals(type)) {
                         cacheDir = context.getExternalFilesDir(null);
@@ -279,6 +355,28 @@ public class TXFileManager {
         return cacheDir;
     }
 
+    /**
+     * 外部缓存目录是否可写, 只检测一次
+     */
+    private static boolean isExternalWritable(File externalCacheDir) {
+        Boolean writable = sExternalWritable;
+        if (writable != null) {
+            return writable;
+        }
+
+        int generation;
+        synchronized (sResolvedDirs) {
+            generation = sGeneration;
+        }
+        writable = checkIfWritable(externalCacheDir);
+        synchronized (sResolvedDirs) {
+            if (generation == sGeneration) {
+                sExternalWritable = writable;
+            }
+        }
+        return writable;
+    }
+
     /**
      * 创建一个文件夹来检测文件是否有权限
      */
@@ -298,32 +396,55 @@ public class TXFileManager {
     }
 
     /**
-     * 删除目录
+     * 删除目录, 删除完成后返回
      *
      * @param fileDir 目录
      * @return 是否成功
      */
-    public static void deleteDirectory(File fileDir) {
-        if (fileDir == null || !fileDir.exists()) {
-            return;
+    public static boolean deleteDirectory(File fileDir) {
+        return TXFileDeleter.delete(fileDir);
+    }
+
+    /**
+     * 先把目录移动到同级的回收目录中立即返回, 再在后台删除.
+     * 移动失败时直接在后台删除原目录.
+     *
+     * @param fileDir  目录
+     * @param listener 删除进度和结果, 可以为null
+     * @return 可以用来取消或等待删除完成
+     */
+    public static TXFileDeleter.Task deleteDirectoryInBackground(File fileDir,
+                                                                 @Nullable TXFileDeleter.OnDeleteListener listener) {
+        File target = fileDir;
+        if (fileDir != null && fileDir.exists() && fileDir.getParentFile() != null) {
+            File trashDir = new File(fileDir.getParentFile(), TRASH_DIR);
+            File trash = new File(trashDir, fileDir.getName() + "." + System.nanoTime());
+            if ((trashDir.isDirectory() || trashDir.mkdirs()) && fileDir.renameTo(trash)) {
+                target = trash;
+            } else {
+                Log.d(TAG, "move to trash fail " + fileDir);
+            }
         }
+        return TXFileDeleter.deleteAsync(target, listener);
+    }
 
-        File[] files = fileDir.listFiles();
-        if (files == null || files.length == 0) {
-            fileDir.delete();
+    /**
+     * 在后台删除dir下回收目录中的内容, 用于删除上次退出前没有删完的数据
+     *
+     * @param dir 调用过deleteDirectoryInBackground的目录的上级目录
+     */
+    public static void emptyTrash(File dir) {
+        if (dir == null) {
             return;
         }
 
+        File[] files = new File(dir, TRASH_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
         for (File file : files) {
-            if (file.isDirectory()) {
-                deleteDirectory(file);
-                return;
-            } else {
-                file.delete();
-            }
+            TXFileDeleter.deleteAsync(file, null);
         }
-
-        fileDir.delete();
     }
 
     /**
@@ -0,0 +1,218 @@
+package com.cc.utils.manager;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计目录占用的空间.
+ * <p>
+ * 注册过的缓存目录直接使用缓存自己记录的大小, 不遍历文件.
+ * 其他文件使用线程池并行遍历, 结果保存到调用{@link #invalidate()}为止, 重复统计只读内存.
+ * 结果超过{@link #MAX_AGE_MILLIS}后先返回旧的结果, 同时在后台重新统计.
+ */
+class TXSpaceAccountant {
+
+    private static final String TAG = "TXSpaceAccountant";
+
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // 前几层目录拆分成单独的任务并行遍历, 更深的目录在同一个任务中遍历
+    private static final int SPLIT_DEPTH = 3;
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // key为目录的绝对路径
+    private final Map<String, TXCacheManager.ManagedCache> mManaged = new ConcurrentHashMap<String, TXCacheManager.ManagedCache>();
+    // 未注册部分的统计结果, key为统计的根目录的绝对路径
+    private final Map<String, Result> mResults = new HashMap<String, Result>();
+    // 每次失效加1, 失效前开始的统计结果不再保存
+    private int mGeneration;
+    private final ThreadPoolExecutor mWalkExecutor = newExecutor(POOL_SIZE, "walk");
+    // 后台重新统计单独使用一个线程, 等待遍历时不占用遍历的线程
+    private final ThreadPoolExecutor mRefreshExecutor = newExecutor(1, "refresh");
+
+    void register(File dir, TXCacheManager.ManagedCache cache) {
+        mManaged.put(dir.getAbsolutePath(), cache);
+        invalidate();
+    }
+
+    void unregister(File dir) {
+        if (mManaged.remove(dir.getAbsolutePath()) != null) {
+            invalidate();
+        }
+    }
+
+    /**
+     * 目录中的文件有修改后调用, 下次统计时重新遍历
+     */
+    void invalidate() {
+        synchronized (mResults) {
+            mGeneration++;
+            mResults.clear();
+        }
+    }
+
+    /**
+     * @return 目录占用的字节数, 目录不存在时为0
+     */
+    long getSize(File root) {
+        if (root == null) {
+            return 0;
+        }
+
+        String rootPath = root.getAbsolutePath();
+        return getUnmanagedSize(root, rootPath) + getManagedSize(rootPath);
+    }
+
+    private long getManagedSize(String rootPath) {
+        long size = 0;
+        String prefix = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+        for (Map.Entry<String, TXCacheManager.ManagedCache> entry : mManaged.entrySet()) {
+            String path = entry.getKey();
+            if (path.equals(rootPath) || path.startsWith(prefix)) {
+                size += entry.getValue().size();
+            }
+        }
+        return size;
+    }
+
+    private long getUnmanagedSize(final File root, final String rootPath) {
+        final int generation;
+        synchronized (mResults) {
+            Result result = mResults.get(rootPath);
+            if (result != null) {
+                if (!result.refreshing && System.currentTimeMillis() - result.time > MAX_AGE_MILLIS) {
+                    result.refreshing = true;
+                    refreshAsync(root, rootPath, mGeneration);
+                }
+                return result.size;
+            }
+            generation = mGeneration;
+        }
+
+        long size = walk(root);
+        saveResult(rootPath, size, generation);
+        return size;
+    }
+
+    private void refreshAsync(final File root, final String rootPath, final int generation) {
+        mRefreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveResult(rootPath, walk(root), generation);
+            }
+        });
+    }
+
+    private void saveResult(String rootPath, long size, int generation) {
+        synchronized (mResults) {
+            if (generation == mGeneration) {
+                mResults.put(rootPath, new Result(size, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * 并行遍历, 跳过注册过的目录
+     */
+    private long walk(File root) {
+        long start = System.currentTimeMillis();
+        Walk walk = new Walk();
+        walk.fork(root, 0);
+        try {
+            walk.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long size = walk.total.get();
+        Log.d(TAG, "walk " + root + " size:" + size + " cost:" + (System.currentTimeMillis() - start));
+        return size;
+    }
+
+    /**
+     * 一次遍历, 所有任务完成后done结束等待
+     */
+    private class Walk {
+        final AtomicLong total = new AtomicLong();
+        final AtomicInteger pending = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        void fork(final File dir, final int depth) {
+            pending.incrementAndGet();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scan(dir, depth);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+            try {
+                mWalkExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        /**
+         * 遍历dir, 浅层的子目录拆分成新任务, 深层的子目录在当前任务中遍历, 不递归
+         */
+        private void scan(File dir, int depth) {
+            long size = 0;
+            ArrayDeque<File> dirs = new ArrayDeque<File>();
+            dirs.push(dir);
+            while (!dirs.isEmpty()) {
+                File current = dirs.pop();
+                // 没有权限或不是目录时为null
+                File[] files = current.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (!file.isDirectory()) {
+                        size += file.length();
+                    } else if (mManaged.containsKey(file.getAbsolutePath())) {
+                        // 注册过的目录单独计算
+                    } else if (current == dir && depth + 1 < SPLIT_DEPTH) {
+                        fork(file, depth + 1);
+                    } else {
+                        dirs.push(file);
+                    }
+                }
+            }
+            total.addAndGet(size);
+        }
+    }
+
+    private static class Result {
+        final long size;
+        final long time;
+        boolean refreshing;
+
+        Result(long size, long time) {
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int size, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new TXBackgroundThreadFactory(TAG + "-" + name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,321 @@
+package com.cc.utils.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 预先定义好要读取的字段, 单次遍历json读取所有字段到{@link Values}中.
+ * <p>
+ * 每个字段指定路径, 类型和默认值, 添加字段时返回字段的序号, 用序号从Values中读取结果:
+ * <pre>
+ * TXJsonFields.Builder builder = new TXJsonFields.Builder();
+ * int id = builder.addLong("id", 0);
+ * int name = builder.addString("data.user.name", "");
+ * TXJsonFields fields = builder.build();
+ *
+ * TXJsonFields.Values values = fields.newValues();
+ * TXJsonUtil.getValues(jsonString, fields, values);
+ * long userId = values.getLong(id);
+ * </pre>
+ * 数值类型的结果保存在基本类型数组中, 不装箱. Values可以重复使用, 每次读取前恢复成默认值.
+ * TXJsonFields构造后不再修改, 可以在多个线程中共用, Values不能在多个线程中同时使用.
+ */
+public final class TXJsonFields {
+
+    private static final int TYPE_INT = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_FLOAT = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_BOOLEAN = 4;
+    private static final int TYPE_STRING = 5;
+
+    // 字段的读取状态
+    private static final byte STATE_NONE = 0;
+    private static final byte STATE_READ = 1;
+    // 为null, 对象或有多个元素的数组, 或者类型转换失败
+    private static final byte STATE_INVALID = 2;
+
+    private final String[] mPaths;
+    private final int[] mTypes;
+    // int, long, boolean的默认值, boolean用0和1表示
+    private final long[] mDefaultLongs;
+    // float, double的默认值
+    private final double[] mDefaultDoubles;
+    private final String[] mDefaultStrings;
+    private final TXJsonPathReader mReader;
+
+    private TXJsonFields(Builder builder) {
+        int size = builder.mPaths.size();
+        mPaths = builder.mPaths.toArray(new String[size]);
+        mTypes = new int[size];
+        mDefaultLongs = new long[size];
+        mDefaultDoubles = new double[size];
+        mDefaultStrings = new String[size];
+        String[][] keys = new String[size][];
+        for (int i = 0; i < size; i++) {
+            Field field = builder.mFields.get(i);
+            mTypes[i] = field.type;
+            mDefaultLongs[i] = field.longValue;
+            mDefaultDoubles[i] = field.doubleValue;
+            mDefaultStrings[i] = field.stringValue;
+            keys[i] = TXJsonPathReader.split(mPaths[i]);
+        }
+        mReader = new TXJsonPathReader(keys);
+    }
+
+    /**
+     * @return 字段数
+     */
+    public int size() {
+        return mPaths.length;
+    }
+
+    public String getPath(int field) {
+        return mPaths[field];
+    }
+
+    /**
+     * @return 新的结果, 所有字段为默认值
+     */
+    public Values newValues() {
+        return new Values(this);
+    }
+
+    void checkValues(Values values) {
+        if (values.mFields != this) {
+            throw new IllegalArgumentException("values not created by these fields");
+        }
+    }
+
+    /**
+     * 从reader当前位置的对象中读取所有字段, 没有读到的字段为默认值
+     */
+    void read(JsonReader reader, Values values) throws IOException {
+        checkValues(values);
+        values.reset();
+        mReader.read(reader, values.mVisitor);
+    }
+
+    public static class Builder {
+        private final List<String> mPaths = new ArrayList<String>();
+        private final List<Field> mFields = new ArrayList<Field>();
+
+        /**
+         * @param path 字段路径, 用.分隔对象的key, 如"data.user.name", 不支持数组下标
+         * @return 字段的序号
+         */
+        public int addInt(String path, int defaultValue) {
+            return add(path, new Field(TYPE_INT, defaultValue, 0, null));
+        }
+
+        public int addLong(String path, long defaultValue) {
+            return add(path, new Field(TYPE_LONG, defaultValue, 0, null));
+        }
+
+        public int addFloat(String path, float defaultValue) {
+            return add(path, new Field(TYPE_FLOAT, 0, defaultValue, null));
+        }
+
+        public int addDouble(String path, double defaultValue) {
+            return add(path, new Field(TYPE_DOUBLE, 0, defaultValue, null));
+        }
+
+        public int addBoolean(String path, boolean defaultValue) {
+            return add(path, new Field(TYPE_BOOLEAN, defaultValue ? 1 : 0, 0, null));
+        }
+
+        public int addString(String path, String defaultValue) {
+            return add(path, new Field(TYPE_STRING, 0, 0, defaultValue));
+        }
+
+        public TXJsonFields build() {
+            return new TXJsonFields(this);
+        }
+
+        /**
+         * 路径不能重复, 也不能是另一个路径的前缀, 否则只能读到其中一个
+         */
+        private int add(String path, Field field) {
+            if (path == null || path.length() == 0) {
+                throw new IllegalArgumentException("path is empty");
+            }
+            for (String added : mPaths) {
+                if (added.equals(path) || added.startsWith(path + ".") || path.startsWith(added + ".")) {
+                    throw new IllegalArgumentException("path " + path + " conflicts with " + added);
+                }
+            }
+
+            mPaths.add(path);
+            mFields.add(field);
+            return mFields.size() - 1;
+        }
+    }
+
+    private static class Field {
+        final int type;
+        final long longValue;
+        final double doubleValue;
+        final String stringValue;
+
+        Field(int type, long longValue, double doubleValue, String stringValue) {
+            this.type = type;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+            this.stringValue = stringValue;
+        }
+    }
+
+    /**
+     * 读取结果, 可以重复使用. 读取类型和添加字段时的类型不一致时抛出IllegalArgumentException
+     */
+    public static class Values {
+        private final TXJsonFields mFields;
+        private final long[] mLongs;
+        private final double[] mDoubles;
+        private final String[] mStrings;
+        private final byte[] mStates;
+        // 每次读取共用, 不重复创建
+        private final TXJsonPathReader.Visitor mVisitor = new TXJsonPathReader.Visitor() {
+            @Override
+            public boolean visit(int index, JsonReader reader) throws IOException {
+                // 重复的key只取第一个
+                if (mStates[index] != STATE_NONE) {
+                    reader.skipValue();
+                    return false;
+                }
+                mStates[index] = readValue(index, reader) ? STATE_READ : STATE_INVALID;
+                return true;
+            }
+        };
+
+        private Values(TXJsonFields fields) {
+            mFields = fields;
+            int size = fields.size();
+            mLongs = new long[size];
+            mDoubles = new double[size];
+            mStrings = new String[size];
+            mStates = new byte[size];
+            reset();
+        }
+
+        /**
+         * 所有字段恢复成默认值
+         */
+        public void reset() {
+            int size = mStates.length;
+            System.arraycopy(mFields.mDefaultLongs, 0, mLongs, 0, size);
+            System.arraycopy(mFields.mDefaultDoubles, 0, mDoubles, 0, size);
+            System.arraycopy(mFields.mDefaultStrings, 0, mStrings, 0, size);
+            Arrays.fill(mStates, STATE_NONE);
+        }
+
+        /**
+         * @return 是否读到了字段的值, 字段不存在, 为null, 是对象或有多个元素的数组, 或者类型转换失败时为false
+         */
+        public boolean has(int field) {
+            return mStates[field] == STATE_READ;
+        }
+
+        public int getInt(int field) {
+            checkType(field, TYPE_INT);
+            return (int) mLongs[field];
+        }
+
+        public long getLong(int field) {
+            checkType(field, TYPE_LONG);
+            return mLongs[field];
+        }
+
+        public float getFloat(int field) {
+            checkType(field, TYPE_FLOAT);
+            return (float) mDoubles[field];
+        }
+
+        public double getDouble(int field) {
+            checkType(field, TYPE_DOUBLE);
+            return mDoubles[field];
+        }
+
+        public boolean getBoolean(int field) {
+            checkType(field, TYPE_BOOLEAN);
+            return mLongs[field] != 0;
+        }
+
+        public String getString(int field) {
+            checkType(field, TYPE_STRING);
+            return mStrings[field];
+        }
+
+        private void checkType(int field, int type) {
+            if (mFields.mTypes[field] != type) {
+                throw new IllegalArgumentException("field " + mFields.mPaths[field] + " is not type " + type);
+            }
+        }
+
+        /**
+         * 按字段类型读取, 转换规则和TXJsonUtil.getXxx(String, ...)一致
+         *
+         * @return 是否读取成功, 失败时保留默认值
+         */
+        private boolean readValue(int field, JsonReader reader) throws IOException {
+            // 只有一个元素的数组按这个元素读取
+            int depth = TXJsonPathReader.beginSingleElement(reader);
+            if (depth < 0) {
+                return false;
+            }
+            boolean read = false;
+            try {
+                read = readScalar(field, reader);
+            } finally {
+                if (!TXJsonPathReader.endSingleElement(reader, depth) && read) {
+                    // 数组有多个元素, 恢复默认值
+                    mLongs[field] = mFields.mDefaultLongs[field];
+                    mDoubles[field] = mFields.mDefaultDoubles[field];
+                    mStrings[field] = mFields.mDefaultStrings[field];
+                    read = false;
+                }
+            }
+            return read;
+        }
+
+        private boolean readScalar(int field, JsonReader reader) throws IOException {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL || token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                return false;
+            }
+
+            try {
+                switch (mFields.mTypes[field]) {
+                    case TYPE_INT:
+                        mLongs[field] = TXJsonPathReader.readInt(reader, (int) mLongs[field]);
+                        break;
+                    case TYPE_LONG:
+                        mLongs[field] = TXJsonPathReader.readLong(reader, mLongs[field]);
+                        break;
+                    case TYPE_FLOAT:
+                        mDoubles[field] = TXJsonPathReader.readFloat(reader, (float) mDoubles[field]);
+                        break;
+                    case TYPE_DOUBLE:
+                        mDoubles[field] = TXJsonPathReader.readDouble(reader, mDoubles[field]);
+                        break;
+                    case TYPE_BOOLEAN:
+                        mLongs[field] = TXJsonPathReader.readBoolean(reader, mLongs[field] != 0) ? 1 : 0;
+                        break;
+                    default:
+                        mStrings[field] = TXJsonPathReader.readString(reader, mStrings[field]);
+                        break;
+                }
+                return true;
+            } catch (NumberFormatException e) {
+                // 读取失败时值已经被读取, 不影响后面的字段
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.cc.utils.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 用JsonReader单次遍历读取指定路径的字段, 其他字段直接跳过, 不生成JsonObject.
+ * <p>
+ * 路径由对象的key组成, 如{"data", "user", "name"}, 不支持数组下标.
+ * 只进入路径上的对象, 所有字段都读到后不再解析剩余部分.
+ * 一个路径是另一个路径的前缀时, 只读取较短的路径.
+ * <p>
+ * 构造后不再修改, 可以在多个线程中同时使用.
+ */
+final class TXJsonPathReader {
+
+    /**
+     * 读到路径对应的值时回调
+     */
+    interface Visitor {
+        /**
+         * reader位于字段的值, 必须读取或跳过这个值
+         *
+         * @param index 路径在构造参数中的位置
+         * @return 是否第一次读到该字段的有效值, 为null或重复的key时返回false
+         */
+        boolean visit(int index, JsonReader reader) throws IOException;
+    }
+
+    private final Node mRoot = new Node();
+    private final int mCount;
+
+    /**
+     * @param paths 每个路径为从外到内的key
+     */
+    TXJsonPathReader(String[][] paths) {
+        int count = 0;
+        for (int i = 0; i < paths.length; i++) {
+            Node node = mRoot;
+            for (String key : paths[i]) {
+                node = node.child(key);
+            }
+            if (node.index < 0) {
+                node.index = i;
+                count++;
+            }
+        }
+        mCount = count;
+    }
+
+    /**
+     * @return 路径按.分隔后的key
+     */
+    static String[] split(String path) {
+        return path.split("\\.", -1);
+    }
+
+    /**
+     * 从reader当前位置的对象中读取所有路径, 不是对象时不读取
+     */
+    void read(JsonReader reader, Visitor visitor) throws IOException {
+        if (mCount > 0 && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            readObject(reader, mRoot, visitor, mCount);
+        }
+    }
+
+    /**
+     * @param remaining 还没有读到的字段数
+     * @return 读完这个对象后还没有读到的字段数, 为0时没有读完这个对象
+     */
+    private static int readObject(JsonReader reader, Node node, Visitor visitor, int remaining) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Node child = node.children.get(reader.nextName());
+            if (child == null) {
+                reader.skipValue();
+                continue;
+            }
+
+            if (child.index >= 0) {
+                if (visitor.visit(child.index, reader)) {
+                    remaining--;
+                }
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                remaining = readObject(reader, child, visitor, remaining);
+            } else {
+                reader.skipValue();
+            }
+            if (remaining == 0) {
+                return 0;
+            }
+        }
+        reader.endObject();
+        return remaining;
+    }
+
+    /**
+     * 把reader定位到最外层对象中key的值
+     *
+     * @return 是否找到, 值为null时返回false
+     */
+    static boolean seek(JsonReader reader, String key) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return false;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (key.equals(reader.nextName())) {
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    return false;
+                }
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    // 以下读取方法和JsonElement.getAsXxx的转换规则一致: 只有一个元素的数组按这个元素读取, 对象, null和其他数组返回默认值
+
+    static int readInt(JsonReader reader, int defaultValue) throws IOException {
+        int depth = beginSingleElement(reader);
+        if (depth < 0) {
+            return defaultValue;
+        }
+        int value;
+        boolean single;
+        try {
+            value = readIntValue(reader, defaultValue);
+        } finally {
+            single = endSingleElement(reader, depth);
+        }
+        return single ? value : defaultValue;
+    }
+
+    static long readLong(JsonReader reader, long defaultValue) throws IOException {
+        int depth = beginSingleElement(reader);
+        if (depth < 0) {
+            return defaultValue;
+        }
+        long value;
+        boolean single;
+        try {
+            value = readLongValue(reader, defaultValue);
+        } finally {
+            single = endSingleElement(reader, depth);
+        }
+        return single ? value : defaultValue;
+    }
+
+    static float readFloat(JsonReader reader, float defaultValue) throws IOException {
+        String value = readSingleScalar(reader);
+        return value == null ? defaultValue : Float.parseFloat(value);
+    }
+
+    static double readDouble(JsonReader reader, double defaultValue) throws IOException {
+        int depth = beginSingleElement(reader);
+        if (depth < 0) {
+            return defaultValue;
+        }
+        double value;
+        boolean single;
+        try {
+            value = readDoubleValue(reader, defaultValue);
+        } finally {
+            single = endSingleElement(reader, depth);
+        }
+        return single ? value : defaultValue;
+    }
+
+    static boolean readBoolean(JsonReader reader, boolean defaultValue) throws IOException {
+        String value = readSingleScalar(reader);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    static String readString(JsonReader reader, String defaultValue) throws IOException {
+        String value = readSingleScalar(reader);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * 进入只有一个元素的数组(可以嵌套), 当前值不是数组时不移动
+     *
+     * @return 进入的数组层数, 数组为空时跳过整个值并返回-1
+     */
+    static int beginSingleElement(JsonReader reader) throws IOException {
+        int depth = 0;
+        while (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            depth++;
+            if (!reader.hasNext()) {
+                endSingleElement(reader, depth);
+                return -1;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * 跳过剩余的元素并退出beginSingleElement进入的数组
+     *
+     * @return 是否每层数组都只有一个元素
+     */
+    static boolean endSingleElement(JsonReader reader, int depth) throws IOException {
+        boolean single = true;
+        for (int i = 0; i < depth; i++) {
+            while (reader.hasNext()) {
+                reader.skipValue();
+                single = false;
+            }
+            reader.endArray();
+        }
+        return single;
+    }
+
+    // 数字先用nextInt/nextLong读取, 在long范围内的整数不生成String, 读取失败时reader不会移动, 再按字符串转换
+
+    private static int readIntValue(JsonReader reader, int defaultValue) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            try {
+                return reader.nextInt();
+            } catch (NumberFormatException ignored) {
+            }
+            String value = reader.nextString();
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return (int) Long.parseLong(value);
+                } catch (NumberFormatException e1) {
+                    return new BigDecimal(value).intValue();
+                }
+            }
+        }
+        String value = readScalar(reader, token);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long readLongValue(JsonReader reader, long defaultValue) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            try {
+                return reader.nextLong();
+            } catch (NumberFormatException ignored) {
+            }
+            String value = reader.nextString();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return new BigDecimal(value).longValue();
+            }
+        }
+        String value = readScalar(reader, token);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private static double readDoubleValue(JsonReader reader, double defaultValue) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            return reader.nextDouble();
+        }
+        String value = readScalar(reader, token);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * @return 值或只有一个元素的数组中的值的字符串形式, 其他情况跳过并返回null
+     */
+    private static String readSingleScalar(JsonReader reader) throws IOException {
+        int depth = beginSingleElement(reader);
+        if (depth < 0) {
+            return null;
+        }
+        String value = readScalar(reader, reader.peek());
+        return endSingleElement(reader, depth) ? value : null;
+    }
+
+    /**
+     * @return 字符串, 数字和布尔值的字符串形式, 其他类型跳过并返回null
+     */
+    private static String readScalar(JsonReader reader, JsonToken token) throws IOException {
+        switch (token) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static class Node {
+        // 叶子节点在路径中的位置, 不是叶子时为-1
+        int index = -1;
+        final Map<String, Node> children = new HashMap<String, Node>();
+
+        Node child(String key) {
+            Node node = children.get(key);
+            if (node == null) {
+                node = new Node();
+                children.put(key, node);
+            }
+            return node;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
@@ -15,13 +16,28 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.reflect.TypeToken;
-
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
+ * getXxx(String jsonString, ...)用JsonReader流式读取, 不生成JsonObject, 类型转换和JsonElement.getAsXxx一致,
+ * 只有一个元素的数组按这个元素读取. 和解析成JsonObject后读取的区别是同一个key出现多次时取第一个, 而不是最后一个.
+ * <p>
  * Created by Cheng on 15/11/2.
  */
 public class TXJsonUtil {
@@ -34,6 +50,9 @@ public class TXJsonUtil {
             .registerTypeHierarchyAdapter(Calendar.class, new CalendarAdapter())
             .create();
 
+    // JsonParser没有状态, 共用一个
+    private static final JsonParser parser = new JsonParser();
+
     public static class DateAdapter implements JsonSerializer<Date>, JsonDeserializer<Date> {
 
         @Override
@@ -82,10 +101,17 @@ public class TXJsonUtil {
     }
 
     public static int getInt(String jsonString, String key, int defaultValue) {
-        if (checkEmpty(jsonString, key))
+        if (checkEmpty(jsonString, key)) {
             return defaultValue;
+        }
 
-        return getInt(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readInt(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static long getLong(JsonObject jsonObject, String key, long defaultValue) {
@@ -107,10 +133,17 @@ public class TXJsonUtil {
     }
 
     public static long getLong(String jsonString, String key, long defaultValue) {
-        if (checkEmpty(jsonString, key))
+        if (checkEmpty(jsonString, key)) {
             return defaultValue;
+        }
 
-        return getLong(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readLong(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static float getFloat(JsonObject jsonObject, String key, float defaultValue) {
@@ -136,7 +169,13 @@ public class TXJsonUtil {
             return defaultValue;
         }
 
-        return getFloat(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readFloat(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static double getDouble(JsonObject jsonObject, String key, double defaultValue) {
@@ -162,7 +201,13 @@ public class TXJsonUtil {
             return defaultValue;
         }
 
-        return getDouble(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readDouble(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static boolean getBoolean(JsonObject jsonObject, String key, boolean defaultValue) {
@@ -188,7 +233,13 @@ public class TXJsonUtil {
             return defaultValue;
         }
 
-        return getBoolean(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readBoolean(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static String getString(JsonObject jsonObject, String key, String defaultValue) {
@@ -214,7 +265,13 @@ public class TXJsonUtil {
             return defaultValue;
         }
 
-        return getString(parse(jsonString), key, defaultValue);
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? TXJsonPathReader.readString(reader, defaultValue) : defaultValue;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
     }
 
     public static JsonObject getJsonObject(JsonObject jsonObject, String key) {
@@ -239,7 +296,8 @@ public class TXJsonUtil {
             return null;
         }
 
-        return getJsonObject(parse(jsonString), key);
+        JsonElement jsonElement = getJsonElement(jsonString, key);
+        return jsonElement != null && jsonElement.isJsonObject() ? jsonElement.getAsJsonObject() : null;
     }
 
     public static JsonArray getJsonArray(JsonObject jsonObject, String key) {
@@ -263,7 +321,114 @@ public class TXJsonUtil {
             return null;
         }
 
-        return getJsonArray(parse(jsonString), key);
+        JsonElement jsonElement = getJsonElement(jsonString, key);
+        return jsonElement != null && jsonElement.isJsonArray() ? jsonElement.getAsJsonArray() : null;
+    }
+
+    /**
+     * 单次遍历读取多个字段, 不生成整个JsonObject, 其他字段直接跳过, 所有字段都读到后不再解析剩余部分
+     *
+     * @param paths 字段路径, 用.分隔对象的key, 如"data.user.name", 不支持数组下标
+     * @return key为路径, 值为字段的字符串形式, 对象和数组为json字符串; 不存在或为null的字段不在结果中
+     */
+    public static Map<String, String> getValues(String jsonString, final String... paths) {
+        final Map<String, String> values = new HashMap<String, String>();
+        if (TextUtils.isEmpty(jsonString) || paths == null || paths.length == 0) {
+            return values;
+        }
+
+        String[][] keys = new String[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            keys[i] = TXJsonPathReader.split(paths[i]);
+        }
+        try {
+            new TXJsonPathReader(keys).read(newReader(jsonString), new TXJsonPathReader.Visitor() {
+                @Override
+                public boolean visit(int index, JsonReader reader) throws IOException {
+                    // 重复的key只取第一个, 和读取单个字段一致
+                    if (values.containsKey(paths[index])) {
+                        reader.skipValue();
+                        return false;
+                    }
+                    JsonToken token = reader.peek();
+                    String value;
+                    if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                        value = gson.getAdapter(JsonElement.class).read(reader).toString();
+                    } else {
+                        value = TXJsonPathReader.readString(reader, null);
+                    }
+                    if (value == null) {
+                        return false;
+                    }
+                    values.put(paths[index], value);
+                    return true;
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return values;
+    }
+
+    /**
+     * 单次遍历读取fields中的所有字段到values, 多次读取相同的字段时重复使用fields和values
+     *
+     * @param values 由fields.newValues()创建, 读取前恢复成默认值, 不是fields创建的时抛出IllegalArgumentException
+     * @return 是否解析成功, 失败时values中已经读到的字段保留
+     */
+    public static boolean getValues(String jsonString, TXJsonFields fields, TXJsonFields.Values values) {
+        fields.checkValues(values);
+        values.reset();
+        if (TextUtils.isEmpty(jsonString)) {
+            return false;
+        }
+
+        try {
+            fields.read(newReader(jsonString), values);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 从流中读取, 不关闭流
+     */
+    public static boolean getValues(InputStream is, TXJsonFields fields, TXJsonFields.Values values) {
+        fields.checkValues(values);
+        values.reset();
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
+            reader.setLenient(true);
+            fields.read(reader, values);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 只解析最外层对象中key对应的值
+     */
+    private static JsonElement getJsonElement(String jsonString, String key) {
+        try {
+            JsonReader reader = newReader(jsonString);
+            return TXJsonPathReader.seek(reader, key) ? gson.getAdapter(JsonElement.class).read(reader) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 和JsonParser一样使用宽松模式
+     */
+    private static JsonReader newReader(String jsonString) {
+        JsonReader reader = new JsonReader(new StringReader(jsonString));
+        reader.setLenient(true);
+        return reader;
     }
 
     public static String parse(Object json) {
@@ -276,9 +441,25 @@ public class TXJsonUtil {
         return null;
     }
 
+    /**
+     * 转换成json直接写入输出流, 不生成中间的String, 输出流需要调用方关闭
+     *
+     * @throws IOException 写入失败
+     */
+    public static void parse(Object json, Type typeOfSrc, OutputStream os) throws IOException {
+        // OutputStreamWriter每次写入String都会新建char数组, 需要BufferedWriter
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8")));
+        try {
+            gson.toJson(json, typeOfSrc, writer);
+        } catch (JsonIOException e) {
+            throw new IOException(e.getMessage());
+        }
+        writer.flush();
+    }
+
     public static JsonObject parse(String jsonString) {
         try {
-            return new JsonParser().parse(jsonString).getAsJsonObject();
+            return parser.parse(jsonString).getAsJsonObject();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -288,7 +469,7 @@ public class TXJsonUtil {
 
     public static JsonArray parseArray(String jsonString) {
         try {
-            return new JsonParser().parse(jsonString).getAsJsonArray();
+            return parser.parse(jsonString).getAsJsonArray();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -333,6 +514,19 @@ public class TXJsonUtil {
         return null;
     }
 
+    /**
+     * 从输入流直接解析, 不生成中间的String, 输入流需要调用方关闭
+     */
+    public static <T> T getModel(InputStream is, Class<T> clazz) {
+        try {
+            return gson.fromJson(new JsonReader(new InputStreamReader(is, "UTF-8")), clazz);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     public static <T> T getModel(JsonObject jsonObject, Class<T> clazz) {
         try {
             return gson.fromJson(jsonObject, clazz);
@@ -365,6 +559,19 @@ public class TXJsonUtil {
         return null;
     }
 
+    /**
+     * 从输入流直接解析, 不生成中间的String和JsonArray, 输入流需要调用方关闭
+     */
+    public static <T> List<T> getModelList(InputStream is, Type typeOfT) {
+        try {
+            return gson.fromJson(new JsonReader(new InputStreamReader(is, "UTF-8")), typeOfT);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     public static <T> List<T> getModelList(JsonArray jsonArray, TypeToken<List<T>> typeToken) {
         try {
             return gson.fromJson(jsonArray, typeToken.getType());
@@ -0,0 +1,304 @@
+package cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding of the {@link DiskLruCache} journal.
+ *
+ * <p>The header is the 4 byte magic {@code 0xD1 'L' 'R' 'B'} followed by the
+ * format version, the application's version and the value count, each as a
+ * big-endian int. The first magic byte is not ASCII, so a binary journal can
+ * never be mistaken for a text one.
+ *
+ * <p>Each record is an op byte, the key, the value lengths for CLEAN records
+ * and a big-endian CRC32 of everything before it in the record:
+ * <pre>
+ *     op      1 byte       CLEAN, DIRTY, REMOVE or READ
+ *     keyInfo 1 byte       bit 7 set if the key is packed hex, bits 0-6 key length in chars
+ *     key     n bytes      two hex chars per byte if packed, ASCII otherwise
+ *     lengths varints      CLEAN only, one unsigned LEB128 varint per value
+ *     crc     4 bytes
+ * </pre>
+ * Keys produced by {@link DiskCache} are 128 bit hex digests, so their key field is
+ * the 16 byte digest itself.
+ */
+final class BinaryJournal {
+    static final byte CLEAN = 1;
+    static final byte DIRTY = 2;
+    static final byte REMOVE = 3;
+    static final byte READ = 4;
+
+    private static final int MAGIC = 0xD14C5242;
+    private static final int VERSION_1 = 1;
+    private static final int HEX_KEY_FLAG = 0x80;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryJournal() {
+    }
+
+    /** Returns true if {@code journalFile} starts with the binary journal magic. */
+    static boolean isBinary(File journalFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    static void writeHeader(OutputStream out, int appVersion, int valueCount) throws IOException {
+        writeInt(out, MAGIC);
+        writeInt(out, VERSION_1);
+        writeInt(out, appVersion);
+        writeInt(out, valueCount);
+    }
+
+    /** Encodes records into a reusable buffer before they reach the stream. */
+    static final class Writer implements Closeable {
+        private final OutputStream out;
+        private final RecordBuffer record = new RecordBuffer();
+        private final CRC32 crc = new CRC32();
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte op, String key, long[] lengths) throws IOException {
+            record.reset();
+            record.write(op);
+            writeKey(record, key);
+            if (op == CLEAN) {
+                for (long length : lengths) {
+                    writeVarint(record, length);
+                }
+            }
+            crc.reset();
+            crc.update(record.buffer(), 0, record.size());
+            writeInt(record, (int) crc.getValue());
+            out.write(record.buffer(), 0, record.size());
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Reads records from a binary journal, header first. */
+    static final class Reader implements Closeable {
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private int pos;
+        private int limit;
+        /** The bytes of the current record, checksummed in one call. */
+        private final byte[] record;
+        private int recordLength;
+        private final long[] lengths;
+
+        byte op;
+        String key;
+
+        Reader(InputStream in, int valueCount) {
+            this.in = in;
+            this.record = new byte[2 + 128 + 10 * valueCount];
+            this.lengths = new long[valueCount];
+        }
+
+        /** Returns the value lengths of the last CLEAN record. */
+        long[] lengths() {
+            return lengths;
+        }
+
+        /**
+         * Validates the header against the cache that is being opened.
+         *
+         * @throws IOException if the header does not match
+         */
+        void readHeader(int appVersion, int valueCount) throws IOException {
+            int magic = readInt();
+            int version = readInt();
+            int appVersionInJournal = readInt();
+            int valueCountInJournal = readInt();
+            if (magic != MAGIC || version != VERSION_1 || appVersionInJournal != appVersion
+                    || valueCountInJournal != valueCount) {
+                throw new IOException("unexpected journal header: [" + Integer.toHexString(magic)
+                        + ", " + version + ", " + appVersionInJournal + ", " + valueCountInJournal + "]");
+            }
+        }
+
+        /**
+         * Reads the next record into {@link #op}, {@link #key} and
+         * {@link #lengths()}.
+         *
+         * @return false at the end of the journal
+         * @throws EOFException if the journal ends inside a record
+         * @throws IOException if a record is corrupt
+         */
+        boolean next() throws IOException {
+            recordLength = 0;
+            int first = readByte();
+            if (first == -1) {
+                return false;
+            }
+            record[recordLength++] = (byte) first;
+            op = (byte) first;
+            if (op < CLEAN || op > READ) {
+                throw new IOException("unexpected journal op: " + op);
+            }
+
+            int keyInfo = readRecordByte();
+            int keyLength = keyInfo & ~HEX_KEY_FLAG;
+            if (keyLength == 0 || keyLength > 127) {
+                throw new IOException("unexpected journal key length: " + keyLength);
+            }
+            int keyStart = recordLength;
+            if ((keyInfo & HEX_KEY_FLAG) != 0) {
+                int packed = (keyLength + 1) / 2;
+                for (int i = 0; i < packed; i++) {
+                    readRecordByte();
+                }
+                char[] chars = new char[keyLength];
+                for (int i = 0; i < keyLength; i++) {
+                    int b = record[keyStart + (i >> 1)];
+                    chars[i] = HEX_DIGITS[((i & 1) == 0 ? b >> 4 : b) & 0xf];
+                }
+                key = new String(chars);
+            } else {
+                for (int i = 0; i < keyLength; i++) {
+                    readRecordByte();
+                }
+                key = new String(record, keyStart, keyLength, Util.US_ASCII);
+            }
+
+            if (op == CLEAN) {
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = readVarint();
+                }
+            }
+
+            crc.reset();
+            crc.update(record, 0, recordLength);
+            if (readInt() != (int) crc.getValue()) {
+                throw new IOException("journal record checksum mismatch for key " + key);
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private int readByte() throws IOException {
+            if (pos == limit) {
+                int read = in.read(buffer, 0, buffer.length);
+                if (read <= 0) {
+                    return -1;
+                }
+                pos = 0;
+                limit = read;
+            }
+            return buffer[pos++] & 0xff;
+        }
+
+        private int readRecordByte() throws IOException {
+            int b = readByte();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            record[recordLength++] = (byte) b;
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readRecordByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed journal length");
+        }
+
+        private int readInt() throws IOException {
+            int result = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = readByte();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                result = (result << 8) | b;
+            }
+            return result;
+        }
+    }
+
+    private static void writeKey(OutputStream out, String key) throws IOException {
+        int length = key.length();
+        if (isHex(key)) {
+            out.write(HEX_KEY_FLAG | length);
+            for (int i = 0; i < length; i += 2) {
+                int high = Character.digit(key.charAt(i), 16);
+                int low = i + 1 < length ? Character.digit(key.charAt(i + 1), 16) : 0;
+                out.write((high << 4) | low);
+            }
+        } else {
+            out.write(length);
+            for (int i = 0; i < length; i++) {
+                out.write(key.charAt(i));
+            }
+        }
+    }
+
+    private static boolean isHex(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /** Exposes its buffer so a record can be checksummed and written without copying. */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(160);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -3,41 +3,279 @@ package cache;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
+import com.cc.utils.manager.TXBackgroundThreadFactory;
+
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 数据的disk缓存，支持key value和可选的meta
  * DiskCache 实现的是一个全局唯一的. 对上层使用不友好.
+ * <p>
+ * 每条数据只有一个文件, meta作为头部和value存在同一个文件中:
+ * [meta长度 int][meta][value], 查找一次只需打开一个文件.
+ * 旧版本value和meta分两个文件存储, 创建时会迁移到新格式.
+ * <p>
+ * 数据目录按代保存: 第0代为entries, clear后为entries.1, entries.2..., 当前代数记录在entries.generation中.
+ * clear时打开新的空目录后立即返回, 旧目录在后台关闭并删除.
+ * entries.generation无法读取时使用比已有目录都新的空目录, 不会打开已clear的数据.
  */
 public class DiskCache {
 
     private static final String TAG = DiskCache.class.getSimpleName();
-    private static final String TIMEOUT_KEY = "timeout";
     private static final int VALUE_IDX = 0;
-    private static final int METADATA_IDX = 1;
+    private static final int VALUE_COUNT = 1;
+    // 旧版本value和meta分两个文件存储
+    private static final int LEGACY_VALUE_COUNT = 2;
+    private static final int LEGACY_METADATA_IDX = 1;
+    // 单文件格式的数据目录
+    private static final String ENTRIES_DIR = "entries";
+    private static final String MIGRATING_SUFFIX = ".migrating";
+    // 当前数据目录的代数
+    private static final String GENERATION_FILE = ENTRIES_DIR + ".generation";
+    // clear后等待旧数据正在进行的读写完成后再关闭删除
+    private static final long RECLAIM_DELAY_SECONDS = 1;
     public static final int DEFAULT_BUFFER_SIZE = 32 * 1024; // 32 Kb
+    // 清理过期数据的间隔
+    private static final long SWEEP_INTERVAL_MINUTES = 10;
+    // 最近转换过的key的缓存槽数, 必须是2的幂
+    private static final int KEY_MEMO_SIZE = 256;
 
-    private DiskLruCache diskLruCache;
+    private volatile DiskLruCache diskLruCache;
+    private final File mDir;
+    // 当前数据目录的代数, 0为entries
+    private int mGeneration;
+    // clear后还没有关闭的旧数据
+    private final List<DiskLruCache> mRetired = new ArrayList<DiskLruCache>();
     private int mAppVersion;
+    private DiskLruCache.Options mOptions;
+    // 过期时间的内存索引, 不用读取文件就能判断是否过期
+    private final ExpiryIndex mExpiryIndex = new ExpiryIndex();
+    // 重建过期索引和清理过期数据的后台线程
+    private final ScheduledThreadPoolExecutor mSweeper =
+            new ScheduledThreadPoolExecutor(1, new TXBackgroundThreadFactory(TAG));
+    private final KeyHasher mKeyHasher;
+    // 按key的hashCode直接映射的槽, 冲突时直接覆盖, 读写不需要加锁
+    private final KeyMemo[] mKeyMemo = new KeyMemo[KEY_MEMO_SIZE];
 
-    private DiskCache(File dir, int appVersion, long maxSize) throws IOException {
+    private DiskCache(File dir, int appVersion, long maxSize, KeyHasher keyHasher) throws IOException {
         mAppVersion = appVersion;
-        diskLruCache = DiskLruCache.open(dir, appVersion, 2, maxSize);
+        mKeyHasher = keyHasher;
+        // 多线程读取不同的key时不再互相阻塞, 日志批量刷盘, 读操作不写日志, 二进制日志加快打开速度
+        mOptions = new DiskLruCache.Options()
+                .setConcurrent()
+                .setJournalDurability(DiskLruCache.JOURNAL_FLUSH_BATCH)
+                .setAccessTracking(DiskLruCache.ACCESS_TRACKING_MEMORY)
+                .setJournalFormat(DiskLruCache.JOURNAL_FORMAT_BINARY);
+        mDir = dir;
+        mGeneration = readGeneration(dir);
+        if (mGeneration < 0) {
+            // 不知道当前是哪一代时, 旧目录可能是已clear还没删除的数据, 不能打开, 使用新的空目录
+            mGeneration = highestGeneration(dir) + 1;
+            try {
+                writeGeneration(dir, mGeneration);
+            } catch (IOException e) {
+                Log.e(TAG, "catch exception when write generation, e:" + e.getLocalizedMessage());
+            }
+        }
+        File entriesDir = generationDir(mGeneration);
+        migrateLegacyLayout(dir, entriesDir, appVersion);
+        diskLruCache = DiskLruCache.open(entriesDir, appVersion, VALUE_COUNT, maxSize, mOptions);
+
+        if (mGeneration > 0) {
+            // 上次clear后没有删完的旧数据
+            final int generation = mGeneration;
+            mSweeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reclaimGenerationsBefore(generation);
+                }
+            });
+        }
+
+        if (!mExpiryIndex.load(entriesDir)) {
+            mSweeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildExpiryIndex();
+                }
+            });
+        }
+        mSweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweepExpired();
+            }
+        }, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 读取所有数据的头部重建过期索引.
+     * 按LRU顺序从旧到新依次读取, 读取结束后LRU顺序不变.
+     */
+    private void rebuildExpiryIndex() {
+        long start = System.currentTimeMillis();
+        boolean complete = false;
+        mExpiryIndex.beginRebuild();
+        try {
+            DiskLruCache cache = diskLruCache;
+            for (String internalKey : cache.keys()) {
+                // clear后新的数据从空开始, 索引已完整
+                if (cache != diskLruCache) {
+                    break;
+                }
+                DiskLruCache.Snapshot snapshot = cache.get(internalKey);
+                if (snapshot == null) {
+                    continue;
+                }
+                try {
+                    mExpiryIndex.recordFromDisk(internalKey, readMetadata(snapshot).expiresAt);
+                } finally {
+                    snapshot.close();
+                }
+            }
+            complete = true;
+            Log.d(TAG, "rebuild expiry index cost:" + (System.currentTimeMillis() - start));
+        } catch (Exception e) {
+            Log.e(TAG, "catch exception when rebuild expiry index, e:" + e.getLocalizedMessage());
+        } finally {
+            mExpiryIndex.endRebuild(complete);
+        }
+    }
+
+    /**
+     * 删除所有已过期的数据, 释放占用的空间.
+     * 删除前在key的锁中重新读取数据头部, 过期时间和索引中的不一致时说明已被重新写入, 不删除
+     */
+    void sweepExpired() {
+        DiskLruCache cache = diskLruCache;
+        if (cache == null) {
+            return;
+        }
+        Map<String, Long> expired = mExpiryIndex.expired(System.currentTimeMillis());
+        int removed = 0;
+        for (final Map.Entry<String, Long> entry : expired.entrySet()) {
+            try {
+                boolean deleted = cache.removeIf(entry.getKey(), new DiskLruCache.RemovePredicate() {
+                    @Override
+                    public boolean shouldRemove(DiskLruCache.Snapshot snapshot) throws IOException {
+                        return readMetadata(snapshot).expiresAt == entry.getValue();
+                    }
+                });
+                if (deleted) {
+                    removed++;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "catch exception when sweep expired key, e:" + e.getLocalizedMessage());
+            }
+            mExpiryIndex.removeIfUnchanged(entry.getKey(), entry.getValue());
+        }
+        if (removed > 0) {
+            Log.d(TAG, "sweep expired entries:" + removed);
+        }
+        // 进程通常不会调用close就退出, 清理后保存索引, 之后没有写入时下次打开不用重建
+        try {
+            cache.flush();
+            mExpiryIndex.persist(cache.getDirectory());
+        } catch (Exception e) {
+            Log.e(TAG, "catch exception when persist expiry index, e:" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 把旧版本两个文件的数据迁移到单文件格式.
+     * 先写入同级的临时目录, 删除旧数据后再移动到entries目录, 中途失败下次创建时会重新迁移.
+     *
+     * @param dir        缓存数据文件夹
+     * @param entriesDir 单文件格式的数据目录
+     * @param appVersion 版本
+     */
+    private void migrateLegacyLayout(File dir, File entriesDir, int appVersion) {
+        File migratingDir = new File(dir.getParentFile(), dir.getName() + MIGRATING_SUFFIX);
+        File legacyJournal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        if (!legacyJournal.exists()) {
+            // 旧数据已删除但还没移动完成
+            if (migratingDir.exists() && !entriesDir.exists() && !migratingDir.renameTo(entriesDir)) {
+                Log.e(TAG, "fail to move migrated dir:" + migratingDir);
+            }
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        DiskLruCache legacy = null;
+        DiskLruCache migrated = null;
+        try {
+            if (migratingDir.exists()) {
+                Util.deleteContents(migratingDir);
+            }
+            legacy = DiskLruCache.open(dir, appVersion, LEGACY_VALUE_COUNT, Long.MAX_VALUE);
+            migrated = DiskLruCache.open(migratingDir, appVersion, VALUE_COUNT, Long.MAX_VALUE, mOptions);
+            for (String internalKey : legacy.keys()) {
+                migrateLegacyEntry(legacy, migrated, internalKey);
+            }
+            migrated.close();
+            migrated = null;
+            legacy.delete();
+            legacy = null;
+            if (!migratingDir.renameTo(entriesDir)) {
+                throw new IOException("fail to move migrated dir:" + migratingDir);
+            }
+            Log.d(TAG, "migrate legacy cache:" + dir + " cost:" + (System.currentTimeMillis() - start));
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when migrate legacy cache, e:" + e.getLocalizedMessage());
+        } finally {
+            if (migrated != null) {
+                Util.closeQuietly(migrated);
+            }
+            if (legacy != null) {
+                Util.closeQuietly(legacy);
+            }
+        }
+    }
+
+    private void migrateLegacyEntry(DiskLruCache legacy, DiskLruCache migrated, String internalKey)
+            throws IOException {
+        DiskLruCache.Snapshot snapshot = legacy.get(internalKey);
+        if (snapshot == null) {
+            return;
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            byte[] metadata = new byte[(int) snapshot.getLength(LEGACY_METADATA_IDX)];
+            new DataInputStream(snapshot.getInputStream(LEGACY_METADATA_IDX)).readFully(metadata);
+            editor = migrated.edit(internalKey);
+            if (editor == null) {
+                return;
+            }
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(editor.newOutputStream(VALUE_IDX), DEFAULT_BUFFER_SIZE));
+            dos.writeInt(metadata.length);
+            dos.write(metadata);
+            Util.copyStream(snapshot.getInputStream(VALUE_IDX), dos);
+            dos.close();
+            editor.commit();
+            editor = null;
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+            snapshot.close();
+        }
     }
 
     /**
@@ -50,69 +288,299 @@ public class DiskCache {
      * @throws IOException
      */
     public static DiskCache create(File dir, int appVersion, long maxSize) throws IOException {
+        return create(dir, appVersion, maxSize, KeyHashers.LEGACY_MD5);
+    }
+
+    /**
+     * 创建一个缓存, 指定key的转换方式
+     *
+     * @param dir        缓存数据文件夹
+     * @param appVersion 版本，由用户控制，修改version后需要自行删除旧文件，否则打开不同版本的文件会抛异常
+     * @param maxSize    cache缓存所有数据最大字节数，0表示没有限制
+     * @param keyHasher  key的转换方式, 同一个文件夹不能更换, 否则旧数据无法读取; 新的缓存建议使用{@link KeyHashers#MURMUR3_128}
+     * @return 缓存实例
+     * @throws IOException
+     */
+    public static DiskCache create(File dir, int appVersion, long maxSize, KeyHasher keyHasher) throws IOException {
         if (maxSize <= 0) {
             maxSize = Integer.MAX_VALUE;
         }
-        return new DiskCache(dir, appVersion, maxSize);
+        if (keyHasher == null) {
+            throw new IllegalArgumentException("keyHasher == null");
+        }
+        return new DiskCache(dir, appVersion, maxSize, keyHasher);
     }
 
     /**
      * 关闭cache
      */
-    public void close() {
+    public synchronized void close() {
+        mSweeper.shutdownNow();
+        try {
+            // 等待正在进行的清理结束, 不和关闭后保存的索引冲突
+            mSweeper.awaitTermination(RECLAIM_DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 没有删完的旧数据下次创建时删除
+        synchronized (mRetired) {
+            for (DiskLruCache retired : mRetired) {
+                Util.closeQuietly(retired);
+            }
+            mRetired.clear();
+        }
+        DiskLruCache cache = diskLruCache;
+        if (cache == null) {
+            return;
+        }
+        diskLruCache = null;
         try {
-            diskLruCache.close();
+            cache.close();
         } catch (IOException e) {
             Log.e(TAG, "catch exception when close cache, e:" + e.getLocalizedMessage());
         }
-        diskLruCache = null;
+        // 关闭时可能重写journal, 关闭后再保存索引
+        try {
+            mExpiryIndex.persist(cache.getDirectory());
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when persist expiry index, e:" + e.getLocalizedMessage());
+        }
     }
 
     /**
-     * 清空并重新打开
+     * 清空数据: 打开新一代的空目录并立即切换, 旧目录在后台关闭并删除.
+     * 切换失败时关闭后同步删除并重新打开.
      */
-    public void clear() {
-        File dir = diskLruCache.getDirectory();
-        long maxSize = diskLruCache.getMaxSize();
+    public synchronized void clear() {
+        final DiskLruCache old = diskLruCache;
+        if (old == null) {
+            return;
+        }
+
+        int generation = mGeneration + 1;
+        File dir = generationDir(generation);
+        DiskLruCache fresh = null;
         try {
-            diskLruCache.delete();
+            // 上次切换失败留下的目录
+            if (dir.exists()) {
+                deleteDirectory(dir);
+            }
+            fresh = DiskLruCache.open(dir, mAppVersion, VALUE_COUNT, old.getMaxSize(), mOptions);
+            writeGeneration(mDir, generation);
+        } catch (Exception e) {
+            Log.e(TAG, "catch exception when switch to dir:" + dir + " e:" + e.getLocalizedMessage());
+            if (fresh != null) {
+                Util.closeQuietly(fresh);
+            }
+            clearInPlace(old);
+            return;
+        }
+
+        mGeneration = generation;
+        diskLruCache = fresh;
+        mExpiryIndex.clear();
+        synchronized (mRetired) {
+            mRetired.add(old);
+        }
+        mSweeper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reclaim(old);
+            }
+        }, RECLAIM_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 关闭后删除所有数据, 再在原目录重新打开
+     */
+    private void clearInPlace(DiskLruCache old) {
+        File dir = old.getDirectory();
+        long maxSize = old.getMaxSize();
+        try {
+            old.delete();
         } catch (Exception e) {
             Log.e(TAG, "catch exception when delete dir:" + dir + " e:" + e.getLocalizedMessage());
         }
+        mExpiryIndex.clear();
         try {
-            diskLruCache = DiskLruCache.open(dir, mAppVersion, 1, maxSize);
+            diskLruCache = DiskLruCache.open(dir, mAppVersion, VALUE_COUNT, maxSize, mOptions);
         } catch (Exception e) {
             Log.e(TAG, "catch exception when reopen dir:" + dir + " e:" + e.getLocalizedMessage());
         }
     }
 
+    /**
+     * 关闭并删除clear前的数据目录
+     */
+    private void reclaim(DiskLruCache old) {
+        long start = System.currentTimeMillis();
+        File dir = old.getDirectory();
+        synchronized (mRetired) {
+            if (!mRetired.remove(old)) {
+                return;
+            }
+        }
+        Util.closeQuietly(old);
+        deleteDirectory(dir);
+        Log.d(TAG, "reclaim dir:" + dir + " cost:" + (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * 删除比generation更早的数据目录
+     */
+    private void reclaimGenerationsBefore(int generation) {
+        for (int i = 0; i < generation; i++) {
+            File dir = generationDir(i);
+            if (dir.exists()) {
+                deleteDirectory(dir);
+            }
+        }
+    }
+
+    private File generationDir(int generation) {
+        return new File(mDir, generation == 0 ? ENTRIES_DIR : ENTRIES_DIR + "." + generation);
+    }
+
+    /**
+     * @return 当前代数, 没有记录时为0, 读取失败时为-1
+     */
+    private static int readGeneration(File dir) {
+        File file = new File(dir, GENERATION_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            int generation = Integer.parseInt(
+                    Util.readFully(new InputStreamReader(new FileInputStream(file), Util.US_ASCII)).trim());
+            return generation >= 0 ? generation : -1;
+        } catch (Exception e) {
+            Log.e(TAG, "catch exception when read generation, e:" + e.getLocalizedMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return 已存在的数据目录中最大的代数, 没有时为0
+     */
+    private static int highestGeneration(File dir) {
+        int highest = 0;
+        String[] names = dir.list();
+        if (names == null) {
+            return highest;
+        }
+        String prefix = ENTRIES_DIR + ".";
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !new File(dir, name).isDirectory()) {
+                continue;
+            }
+            try {
+                highest = Math.max(highest, Integer.parseInt(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // 不是数据目录
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * 先写临时文件再重命名, 写入后下次创建时使用新的目录
+     */
+    private static void writeGeneration(File dir, int generation) throws IOException {
+        File file = new File(dir, GENERATION_FILE);
+        File tmp = new File(dir, GENERATION_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(String.valueOf(generation).getBytes(Util.US_ASCII));
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("fail to rename " + tmp);
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        try {
+            Util.deleteContents(dir);
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when delete dir:" + dir + " e:" + e.getLocalizedMessage());
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return 所有数据占用的字节数, 直接读取DiskLruCache记录的大小, 不遍历文件
+     */
+    public long size() {
+        DiskLruCache cache = diskLruCache;
+        return cache == null ? 0 : cache.size();
+    }
+
     public boolean delete(String key) {
+        return deleteInternal(toInternalKey(key));
+    }
+
+    /**
+     * 在key的锁中检查condition, 返回true时才删除, 检查和删除期间同一个key不会被写入
+     *
+     * @return 是否删除
+     */
+    public boolean deleteIf(String key, final DeleteCondition condition) {
+        DiskLruCache cache = diskLruCache;
+        if (cache == null) {
+            return false;
+        }
+        String internalKey = toInternalKey(key);
         try {
-            return diskLruCache.remove(toInternalKey(key));
+            boolean deleted = cache.removeIf(internalKey, new DiskLruCache.RemovePredicate() {
+                @Override
+                public boolean shouldRemove(DiskLruCache.Snapshot snapshot) {
+                    return condition.shouldDelete();
+                }
+            });
+            if (deleted) {
+                mExpiryIndex.update(internalKey, EntryMetadata.NO_EXPIRY);
+            }
+            return deleted;
         } catch (IOException e) {
             Log.e(TAG, "catch exception when remove key, e:" + e.getLocalizedMessage());
             return false;
         }
     }
 
+    private boolean deleteInternal(String internalKey) {
+        try {
+            return diskLruCache.remove(internalKey);
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception when remove key, e:" + e.getLocalizedMessage());
+            return false;
+        } finally {
+            mExpiryIndex.update(internalKey, EntryMetadata.NO_EXPIRY);
+        }
+    }
+
+    /**
+     * 根据内存索引判断是否过期, 过期则删除
+     *
+     * @return 是否过期
+     */
+    private boolean expiredInIndex(String key, String internalKey) {
+        if (mExpiryIndex.isExpired(internalKey, System.currentTimeMillis())) {
+            deleteInternal(internalKey);
+            Log.d(TAG, "timeout key:" + key);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * 检测是否超时
      *
      * @return 是否超时，发生解析错误按未超时处理
      */
-    private static boolean ifTimeout(Map<String, Serializable> meta) {
-        try {
-            if (meta == null || !meta.containsKey(TIMEOUT_KEY)) {
-                return false;
-            }
-            String timeStr = (String) meta.get(TIMEOUT_KEY);
-            long timeout = Long.parseLong(timeStr);
-            Log.d(TAG, "read meta timeout:" + timeout + " current time:" + System.currentTimeMillis());
-            return ((timeout - System.currentTimeMillis()) <= 0);
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "catch io exception when parse long, e:" + e.getLocalizedMessage());
-            return false;
-        }
+    private static boolean ifTimeout(EntryMetadata meta) {
+        return meta.isExpired(System.currentTimeMillis());
     }
 
     /**
@@ -136,9 +604,13 @@ public class DiskCache {
      * @return 数据或null
      */
     public InputStreamEntry getInputStreamWithMeta(String key) {
+        String internalKey = toInternalKey(key);
+        if (expiredInIndex(key, internalKey)) {
+            return null;
+        }
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = diskLruCache.get(toInternalKey(key));
+            snapshot = diskLruCache.get(internalKey);
         } catch (IOException e) {
             Log.e(TAG, "catch io exception when get snapshot, e:" + e.getLocalizedMessage());
         }
@@ -146,9 +618,10 @@ public class DiskCache {
             return null;
         }
         try {
-            Map<String, Serializable> meta = readMetadata(snapshot);
+            EntryMetadata meta = readMetadata(snapshot);
             if (ifTimeout(meta)) {
-                delete(key);
+                snapshot.close();
+                deleteInternal(internalKey);
                 Log.d(TAG, "timeout key:" + key);
                 return null;
             }
@@ -188,9 +661,13 @@ public class DiskCache {
         if (TextUtils.isEmpty(key)) {
             return null;
         }
+        String internalKey = toInternalKey(key);
+        if (expiredInIndex(key, internalKey)) {
+            return null;
+        }
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = diskLruCache.get(toInternalKey(key));
+            snapshot = diskLruCache.get(internalKey);
         } catch (IOException e) {
             Log.e(TAG, "catch io exception when get snapshot when read, e:" + e.getLocalizedMessage());
         }
@@ -198,9 +675,9 @@ public class DiskCache {
             return null;
         }
         try {
-            Map<String, Serializable> meta = readMetadata(snapshot);
+            EntryMetadata meta = readMetadata(snapshot);
             if (ifTimeout(meta)) {
-                delete(key);
+                deleteInternal(internalKey);
                 Log.d(TAG, "timeout key:" + key);
                 return null;
             }
@@ -220,9 +697,17 @@ public class DiskCache {
      * @return 是否包含该数据
      */
     public boolean contains(String key) {
+        String internalKey = toInternalKey(key);
+        if (expiredInIndex(key, internalKey)) {
+            return false;
+        }
+        // 索引完整时不在索引中的过期数据不存在, 只需判断是否有该数据
+        if (mExpiryIndex.isComplete()) {
+            return diskLruCache.contains(internalKey);
+        }
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = diskLruCache.get(toInternalKey(key));
+            snapshot = diskLruCache.get(internalKey);
         } catch (IOException e) {
             Log.e(TAG, "catch io exception when get snapshot when read, e:" + e.getLocalizedMessage());
             return false;
@@ -231,9 +716,9 @@ public class DiskCache {
             return false;
         }
         try {
-            Map<String, Serializable> meta = readMetadata(snapshot);
+            EntryMetadata meta = readMetadata(snapshot);
             if (ifTimeout(meta)) {
-                delete(key);
+                deleteInternal(internalKey);
                 Log.d(TAG, "timeout key:" + key);
                 return false;
             }
@@ -253,8 +738,8 @@ public class DiskCache {
      * @return CacheOutputStream
      * @throws IOException
      */
-    private OutputStream openStream(String key) throws IOException {
-        return openStream(key, new HashMap<String, Serializable>());
+    private CacheOutputStream openStream(String key) throws IOException {
+        return openStream(key, EntryMetadata.EMPTY);
     }
 
     /**
@@ -265,13 +750,14 @@ public class DiskCache {
      * @return CacheOutputStream
      * @throws IOException
      */
-    private OutputStream openStream(String key, Map<String, ? extends Serializable> metadata) throws IOException {
-        DiskLruCache.Editor editor = diskLruCache.edit(toInternalKey(key));
+    private CacheOutputStream openStream(String key, EntryMetadata metadata) throws IOException {
+        String internalKey = toInternalKey(key);
+        DiskLruCache.Editor editor = diskLruCache.edit(internalKey);
         if (editor != null) {
             try {
-                writeMetadata(metadata, editor);
                 BufferedOutputStream bos = new BufferedOutputStream(editor.newOutputStream(VALUE_IDX), DEFAULT_BUFFER_SIZE);
-                return new CacheOutputStream(bos, editor);
+                metadata.writeTo(bos);
+                return new CacheOutputStream(bos, editor, mExpiryIndex, internalKey, metadata.expiresAt);
             } catch (IOException e) {
                 editor.abort();
                 throw e;
@@ -289,7 +775,7 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, InputStream is) {
-        return put(key, is, new HashMap<String, Serializable>());
+        return put(key, is, EntryMetadata.EMPTY);
     }
 
     /**
@@ -301,9 +787,7 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, InputStream is, long timeout) {
-        Map<String, Serializable> meta = new HashMap<String, Serializable>();
-        meta.put(TIMEOUT_KEY, String.valueOf(System.currentTimeMillis() + timeout));
-        return put(key, is, meta);
+        return put(key, is, EntryMetadata.withTimeout(timeout));
     }
 
     /**
@@ -315,9 +799,13 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, InputStream is, Map<String, Serializable> annotations) {
+        return put(key, is, EntryMetadata.fromAnnotations(annotations));
+    }
+
+    private boolean put(String key, InputStream is, EntryMetadata metadata) {
         OutputStream os = null;
         try {
-            os = openStream(key, annotations);
+            os = openStream(key, metadata);
             Util.copyStream(is, os);
         } catch (IOException e) {
             Log.e(TAG, "catch io exception when write stream, e:" + e.getLocalizedMessage());
@@ -336,7 +824,7 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, String value) {
-        return put(key, value, new HashMap<String, Serializable>());
+        return put(key, value, EntryMetadata.EMPTY);
     }
 
     /**
@@ -348,9 +836,7 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, String value, long timeout) {
-        Map<String, Serializable> meta = new HashMap<String, Serializable>();
-        meta.put(TIMEOUT_KEY, String.valueOf(System.currentTimeMillis() + timeout));
-        return put(key, value, meta);
+        return put(key, value, EntryMetadata.withTimeout(timeout));
     }
 
     /**
@@ -362,9 +848,13 @@ public class DiskCache {
      * @return 是否成功
      */
     public boolean put(String key, String value, Map<String, Serializable> annotations) {
+        return put(key, value, EntryMetadata.fromAnnotations(annotations));
+    }
+
+    private boolean put(String key, String value, EntryMetadata metadata) {
         OutputStream cos = null;
         try {
-            cos = openStream(key, annotations);
+            cos = openStream(key, metadata);
             cos.write(value.getBytes());
         } catch (IOException e) {
             Log.e(TAG, "catch io exception when write string, e:" + e.getLocalizedMessage());
@@ -376,81 +866,124 @@ public class DiskCache {
     }
 
     /**
-     * 将字符串转成cache使用的key
+     * 向cache中添加数据, 数据由writer直接写入cache的文件, 不需要先转换成String或byte数组
      *
-     * @param key 用户的key
-     * @return cache使用的key
+     * @param key    用户的key
+     * @param writer 写入数据, 抛出异常时放弃本次写入
+     * @return 是否成功
      */
-    private String toInternalKey(String key) {
-        return md5(key);
+    public boolean put(String key, ValueWriter writer) {
+        return put(key, writer, EntryMetadata.EMPTY);
     }
 
-    private String md5(String s) {
+    /**
+     * 向cache中添加数据，并设定超时时间
+     *
+     * @param key     用户的key
+     * @param writer  写入数据, 抛出异常时放弃本次写入
+     * @param timeout 超时时间 毫秒
+     * @return 是否成功
+     */
+    public boolean put(String key, ValueWriter writer, long timeout) {
+        return put(key, writer, EntryMetadata.withTimeout(timeout));
+    }
+
+    private boolean put(String key, ValueWriter writer, EntryMetadata metadata) {
+        CacheOutputStream cos = null;
         try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(s.getBytes("UTF-8"));
-            byte[] digest = m.digest();
-            BigInteger bigInt = new BigInteger(1, digest);
-            return bigInt.toString(16);
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError();
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError();
+            cos = openStream(key, metadata);
+            if (cos == null) {
+                return false;
+            }
+            writer.writeTo(cos);
+            cos.close();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "catch io exception when write value, e:" + e.getLocalizedMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "catch exception when write value, e:" + e.getLocalizedMessage());
+        } finally {
+            if (cos != null) {
+                cos.abortUnlessClosed();
+            }
         }
+        return false;
     }
 
     /**
-     * 将自定义数据写入文件
+     * 将字符串转成cache使用的key
      *
-     * @param metadata 自定义文件
-     * @param editor   cache编辑器
-     * @throws IOException
+     * @param key 用户的key
+     * @return cache使用的key
      */
-    private void writeMetadata(Map<String, ? extends Serializable> metadata,
-                               DiskLruCache.Editor editor) throws IOException {
-        ObjectOutputStream oos = null;
-        try {
-            oos =
-                    new ObjectOutputStream(new BufferedOutputStream(editor.newOutputStream(METADATA_IDX),
-                            DEFAULT_BUFFER_SIZE));
-            oos.writeObject(metadata);
-        } finally {
-            Util.closeQuietly(oos);
+    private String toInternalKey(String key) {
+        int slot = key.hashCode() & (KEY_MEMO_SIZE - 1);
+        KeyMemo memo = mKeyMemo[slot];
+        if (memo != null && memo.key.equals(key)) {
+            return memo.internalKey;
         }
+        String internalKey = mKeyHasher.toInternalKey(key);
+        mKeyMemo[slot] = new KeyMemo(key, internalKey);
+        return internalKey;
     }
 
-    private Map<String, Serializable> readMetadata(
-            DiskLruCache.Snapshot snapshot) throws IOException {
-        ObjectInputStream ois = null;
-        try {
-            ois =
-                    new ObjectInputStream(new BufferedInputStream(snapshot.getInputStream(METADATA_IDX),
-                            DEFAULT_BUFFER_SIZE));
-            @SuppressWarnings("unchecked")
-            Map<String, Serializable> annotations = (Map<String, Serializable>) ois.readObject();
-            return annotations;
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        } finally {
-            Util.closeQuietly(ois);
+    /**
+     * 用户的key和转换结果, 不可变, 可以在线程间安全发布
+     */
+    private static final class KeyMemo {
+        final String key;
+        final String internalKey;
+
+        KeyMemo(String key, String internalKey) {
+            this.key = key;
+            this.internalKey = internalKey;
         }
     }
 
+    /**
+     * 读取value文件的头部, 读取后流的位置在value的开始处
+     */
+    private EntryMetadata readMetadata(DiskLruCache.Snapshot snapshot) throws IOException {
+        return EntryMetadata.readFrom(snapshot.getInputStream(VALUE_IDX));
+    }
+
     /**
      * 通过是否有异常来判断close时是否提交修改
      */
     private static class CacheOutputStream extends FilterOutputStream {
 
         private final DiskLruCache.Editor editor;
+        private final ExpiryIndex expiryIndex;
+        private final String internalKey;
+        private final long expiresAt;
         private boolean failed = false;
+        private boolean closed = false;
 
-        private CacheOutputStream(OutputStream os, DiskLruCache.Editor editor) {
+        private CacheOutputStream(OutputStream os, DiskLruCache.Editor editor,
+                                  ExpiryIndex expiryIndex, String internalKey, long expiresAt) {
             super(os);
             this.editor = editor;
+            this.expiryIndex = expiryIndex;
+            this.internalKey = internalKey;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * 没有close时放弃写入, 用于写入数据的过程中出现异常
+         */
+        void abortUnlessClosed() {
+            if (!closed) {
+                failed = true;
+                Util.closeQuietly(this);
+            }
         }
 
         @Override
         public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
             IOException closeException = null;
             try {
                 super.close();
@@ -461,6 +994,8 @@ public class DiskCache {
             if (failed) {
                 editor.abort();
             } else {
+                // 先更新索引再提交, 保存的索引不会缺少journal中已有的写入
+                expiryIndex.update(internalKey, expiresAt);
                 editor.commit();
             }
 
@@ -501,7 +1036,8 @@ public class DiskCache {
         @Override
         public void write(byte[] buffer, int offset, int length) throws IOException {
             try {
-                super.write(buffer, offset, length);
+                // FilterOutputStream会逐个字节写入
+                out.write(buffer, offset, length);
             } catch (IOException e) {
                 failed = true;
                 throw e;
@@ -509,9 +1045,27 @@ public class DiskCache {
         }
     }
 
+    /**
+     * 把数据直接写入cache的输出流
+     */
+    public interface ValueWriter {
+        /**
+         * @param os cache的输出流, 不需要关闭
+         */
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    /**
+     * {@link #deleteIf(String, DeleteCondition)}的删除条件
+     */
+    public interface DeleteCondition {
+        boolean shouldDelete();
+    }
+
     public static class InputStreamEntry {
         private final DiskLruCache.Snapshot snapshot;
-        private final Map<String, Serializable> metadata;
+        private Map<String, Serializable> metadata;
+        private EntryMetadata entryMetadata;
 
         public InputStreamEntry(DiskLruCache.Snapshot snapshot,
                                 Map<String, Serializable> metadata) {
@@ -519,11 +1073,33 @@ public class DiskCache {
             this.snapshot = snapshot;
         }
 
+        InputStreamEntry(DiskLruCache.Snapshot snapshot, EntryMetadata metadata) {
+            this.snapshot = snapshot;
+            this.entryMetadata = metadata;
+        }
+
         public InputStream getInputStream() {
             return snapshot.getInputStream(VALUE_IDX);
         }
 
+        /**
+         * 读取剩余的数据转换成字符串, 和{@link DiskCache#getString(String)}读到的一致
+         */
+        public String getString() throws IOException {
+            return Util.readFully(new InputStreamReader(getInputStream(), Util.UTF_8));
+        }
+
+        /**
+         * @return 数据文件的字节数, 包含meta头部
+         */
+        public long getLength() {
+            return snapshot.getLength(VALUE_IDX);
+        }
+
         public Map<String, Serializable> getMetadata() {
+            if (metadata == null && entryMetadata != null) {
+                metadata = entryMetadata.toMap();
+            }
             return metadata;
         }
 
@@ -535,18 +1111,27 @@ public class DiskCache {
 
     public static class StringEntry {
         private final String string;
-        private final Map<String, Serializable> metadata;
+        private Map<String, Serializable> metadata;
+        private EntryMetadata entryMetadata;
 
         public StringEntry(String string, Map<String, Serializable> metadata) {
             this.string = string;
             this.metadata = metadata;
         }
 
+        StringEntry(String string, EntryMetadata metadata) {
+            this.string = string;
+            this.entryMetadata = metadata;
+        }
+
         public String getString() {
             return string;
         }
 
         public Map<String, Serializable> getMetadata() {
+            if (metadata == null && entryMetadata != null) {
+                metadata = entryMetadata.toMap();
+            }
             return metadata;
         }
     }
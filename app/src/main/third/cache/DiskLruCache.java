@@ -1,5 +1,6 @@
 package cache;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -17,11 +18,14 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +72,33 @@ import java.util.regex.Pattern;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>By default every operation is serialized on the cache instance. A cache
+ * opened with {@link Options#setConcurrent} guards entry state with striped
+ * per-key locks instead: {@link #get} only holds the cache monitor to look up
+ * the entry and to append to the journal, and opens the value files under the
+ * entry's stripe, so reads of different keys no longer queue behind each other.
+ *
+ * <p>Journal durability is chosen with {@link Options#setJournalDurability}.
+ * {@link #JOURNAL_FLUSH_EVERY_OP} flushes the journal for every edit as the
+ * classic cache does. {@link #JOURNAL_FLUSH_BATCH} group-commits: lines from
+ * concurrent editors accumulate in the journal buffer and are written with a
+ * single flush once the batch deadline passes. {@link #JOURNAL_FLUSH_ON_CLOSE}
+ * only flushes on {@link #flush}, {@link #close} and journal rebuilds. With the
+ * relaxed levels a crash may lose the most recent edits; files they left behind
+ * are removed the next time the cache is opened.
+ *
+ * <p>By default every hit appends a READ line to the journal. With
+ * {@link Options#setAccessTracking} set to {@link #ACCESS_TRACKING_MEMORY} the
+ * LRU order is only kept in memory and persisted as the entry order of the
+ * compacted journal whenever it is rebuilt or the cache is closed, so reads do
+ * not write to disk at all.
+ *
+ * <p>With {@link Options#setJournalFormat} set to {@link #JOURNAL_FORMAT_BINARY}
+ * the journal is written in the compact checksummed format described in
+ * {@link BinaryJournal}, which opens without any string splitting or number
+ * parsing. Either format is read on open; a journal in the other format is
+ * migrated by rebuilding it.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
@@ -83,6 +114,23 @@ public final class DiskLruCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /** Flush the journal for every edit. */
+    public static final int JOURNAL_FLUSH_EVERY_OP = 0;
+    /** Flush the journal once per batch of edits. */
+    public static final int JOURNAL_FLUSH_BATCH = 1;
+    /** Flush the journal only when the cache is flushed or closed. */
+    public static final int JOURNAL_FLUSH_ON_CLOSE = 2;
+
+    /** Record every read as a READ line in the journal. */
+    public static final int ACCESS_TRACKING_JOURNAL = 0;
+    /** Keep read recency in memory and persist it when the journal is rebuilt. */
+    public static final int ACCESS_TRACKING_MEMORY = 1;
+
+    /** The classic line based journal. */
+    public static final int JOURNAL_FORMAT_TEXT = 0;
+    /** The compact binary journal, see {@link BinaryJournal}. */
+    public static final int JOURNAL_FORMAT_BINARY = 1;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -130,12 +178,37 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
+    private volatile long size = 0;
+    private JournalWriter journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries =
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /**
+     * Striped locks guarding entry state in concurrent mode, or null when every
+     * operation is serialized on this cache. Lock order is always stripe first,
+     * then this cache's monitor; code holding the monitor may only tryLock a stripe.
+     */
+    private final ReentrantLock[] entryLocks;
+
+    private final int journalDurability;
+    private final long journalBatchDelayMillis;
+    /** Flushes batched journal lines, or null unless in {@link #JOURNAL_FLUSH_BATCH} mode. */
+    private final ScheduledThreadPoolExecutor journalFlushExecutor;
+    /** True while a batch flush is scheduled but has not run yet. */
+    private boolean journalFlushPending;
+
+    private final int accessTracking;
+    /** True if reads reordered entries since the journal was last rebuilt. */
+    private boolean accessOrderChanged;
+
+    private final int journalFormat;
+    /**
+     * True if the journal read on open is in the other format or ends with a
+     * torn record, so it has to be rewritten before anything is appended.
+     */
+    private boolean journalRebuildOnOpen;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -161,8 +234,23 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
     };
+    private final Runnable journalFlushRunnable = new Runnable() {
+        public void run() {
+            synchronized (DiskLruCache.this) {
+                journalFlushPending = false;
+                if (journalWriter == null) {
+                    return; // Closed.
+                }
+                try {
+                    journalWriter.flush();
+                } catch (IOException ignored) {
+                    // The next flush or close will surface the failure.
+                }
+            }
+        }
+    };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, Options options) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
@@ -170,6 +258,25 @@ public final class DiskLruCache implements Closeable {
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        if (options.lockStripes > 0) {
+            this.entryLocks = new ReentrantLock[options.lockStripes];
+            for (int i = 0; i < entryLocks.length; i++) {
+                entryLocks[i] = new ReentrantLock();
+            }
+        } else {
+            this.entryLocks = null;
+        }
+        this.journalDurability = options.journalDurability;
+        this.journalBatchDelayMillis = options.journalBatchDelayMillis;
+        this.accessTracking = options.accessTracking;
+        this.journalFormat = options.journalFormat;
+        if (journalDurability == JOURNAL_FLUSH_BATCH) {
+            journalFlushExecutor = new ScheduledThreadPoolExecutor(1);
+            journalFlushExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            journalFlushExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            journalFlushExecutor = null;
+        }
     }
 
     /**
@@ -183,6 +290,21 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given {@code options},
+     * creating a cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options how the cache locks and journals its operations
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+                                    Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -203,13 +325,16 @@ public final class DiskLruCache implements Closeable {
         }
 
         // Prefer to pick up where we left off.
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(
-                        new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
+                if (cache.journalRebuildOnOpen) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = cache.newJournalWriter(cache.journalFile, true);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
                 System.out
@@ -224,12 +349,22 @@ public final class DiskLruCache implements Closeable {
 
         // Create a new empty cache.
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
         cache.rebuildJournal();
         return cache;
     }
 
     private void readJournal() throws IOException {
+        if (BinaryJournal.isBinary(journalFile)) {
+            readBinaryJournal();
+            journalRebuildOnOpen |= journalFormat != JOURNAL_FORMAT_BINARY;
+        } else {
+            readTextJournal();
+            journalRebuildOnOpen |= journalFormat != JOURNAL_FORMAT_TEXT;
+        }
+    }
+
+    private void readTextJournal() throws IOException {
         StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
         try {
             String magic = reader.readLine();
@@ -300,12 +435,57 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private void readBinaryJournal() throws IOException {
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(new FileInputStream(journalFile), valueCount);
+        try {
+            reader.readHeader(appVersion, valueCount);
+
+            int recordCount = 0;
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (EOFException tornRecord) {
+                    // The last append was interrupted; drop it and rewrite the journal.
+                    journalRebuildOnOpen = true;
+                    break;
+                }
+                recordCount++;
+
+                if (reader.op == BinaryJournal.REMOVE) {
+                    lruEntries.remove(reader.key);
+                    continue;
+                }
+                Entry entry = lruEntries.get(reader.key);
+                if (entry == null) {
+                    entry = new Entry(reader.key);
+                    lruEntries.put(reader.key, entry);
+                }
+                if (reader.op == BinaryJournal.CLEAN) {
+                    entry.readable = true;
+                    entry.currentEditor = null;
+                    System.arraycopy(reader.lengths(), 0, entry.lengths, 0, valueCount);
+                } else if (reader.op == BinaryJournal.DIRTY) {
+                    entry.currentEditor = new Editor(entry);
+                }
+                // READ: this work was already done by calling lruEntries.get().
+            }
+            redundantOpCount = recordCount - lruEntries.size();
+        } finally {
+            Util.closeQuietly(reader);
+        }
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        if (journalDurability != JOURNAL_FLUSH_EVERY_OP) {
+            deleteUntrackedFiles();
+        }
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -323,6 +503,41 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Deletes value files that the journal does not know about. With relaxed
+     * journal durability a crash can lose DIRTY or CLEAN lines whose files were
+     * already written, which would otherwise leak space forever.
+     */
+    private void deleteUntrackedFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP)
+                    || name.equals(JOURNAL_FILE_BACKUP) || file.isDirectory()) {
+                continue;
+            }
+            if (name.endsWith(".tmp")) {
+                deleteIfExists(file); // Dirty files never survive an open.
+                continue;
+            }
+            if (!LEGAL_KEY_PATTERN.matcher(name).matches()) {
+                continue; // Not a value file.
+            }
+            boolean tracked = false;
+            for (int i = 0; i < valueCount && !tracked; i++) {
+                String index = Integer.toString(i);
+                tracked = name.endsWith(index)
+                        && lruEntries.containsKey(name.substring(0, name.length() - index.length()));
+            }
+            if (!tracked) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
@@ -332,24 +547,15 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+        JournalWriter writer = newJournalWriter(journalFileTmp, false);
         try {
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION_1);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
+            writer.writeHeader(appVersion, valueCount);
 
             for (Entry entry : lruEntries.values()) {
                 if (entry.currentEditor != null) {
-                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                    writer.write(DIRTY, entry.key, null);
                 } else {
-                    writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                    writer.write(CLEAN, entry.key, entry.lengths);
                 }
             }
         } finally {
@@ -362,8 +568,17 @@ public final class DiskLruCache implements Closeable {
         renameTo(journalFileTmp, journalFile, false);
         journalFileBackup.delete();
 
-        journalWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+        journalWriter = newJournalWriter(journalFile, true);
+        accessOrderChanged = false;
+        journalRebuildOnOpen = false;
+    }
+
+    private JournalWriter newJournalWriter(File file, boolean append) throws FileNotFoundException {
+        if (journalFormat == JOURNAL_FORMAT_BINARY) {
+            return new BinaryJournalWriter(new BufferedOutputStream(new FileOutputStream(file, append)));
+        }
+        return new TextJournalWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file, append), Util.US_ASCII)));
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -386,7 +601,66 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
+        if (entryLocks == null) {
+            return getSerialized(key);
+        }
+
+        validateKey(key);
+        Entry entry;
+        synchronized (this) {
+            checkNotClosed();
+            entry = lruEntries.get(key);
+            if (entry != null && accessTracking == ACCESS_TRACKING_MEMORY) {
+                // The lookup moved the entry to the head of the LRU queue.
+                accessOrderChanged = true;
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        InputStream[] ins;
+        long sequenceNumber;
+        long[] lengths;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!entry.readable) {
+                return null;
+            }
+            ins = openCleanFiles(entry);
+            if (ins == null) {
+                return null;
+            }
+            sequenceNumber = entry.sequenceNumber;
+            lengths = entry.lengths.clone();
+        } finally {
+            lock.unlock();
+        }
+
+        if (accessTracking == ACCESS_TRACKING_MEMORY) {
+            return new Snapshot(key, sequenceNumber, ins, lengths);
+        }
+
+        synchronized (this) {
+            if (journalWriter == null) {
+                for (InputStream in : ins) {
+                    Util.closeQuietly(in);
+                }
+                throw new IllegalStateException("cache is closed");
+            }
+            redundantOpCount++;
+            journalWriter.write(READ, key, null);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+        }
+
+        return new Snapshot(key, sequenceNumber, ins, lengths);
+    }
+
+    private synchronized Snapshot getSerialized(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -398,9 +672,30 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
+        InputStream[] ins = openCleanFiles(entry);
+        if (ins == null) {
+            return null;
+        }
+
+        if (accessTracking == ACCESS_TRACKING_MEMORY) {
+            accessOrderChanged = true;
+        } else {
+            redundantOpCount++;
+            journalWriter.write(READ, key, null);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+        }
+
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    }
+
+    /**
+     * Opens all streams of {@code entry} eagerly to guarantee that we see a
+     * single published snapshot. If we opened streams lazily then the streams
+     * could come from different edits. Returns null if a file is missing.
+     */
+    private InputStream[] openCleanFiles(Entry entry) {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
@@ -417,14 +712,7 @@ public final class DiskLruCache implements Closeable {
             }
             return null;
         }
-
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
-
-        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+        return ins;
     }
 
     /**
@@ -454,8 +742,8 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        journalWriter.write(DIRTY, key, null);
+        flushJournal();
         return editor;
     }
 
@@ -486,11 +774,31 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        // close() aborts pending edits while holding the monitor; it must not wait for a stripe.
+        if (entryLocks == null || Thread.holdsLock(this)) {
+            synchronized (this) {
+                completeEditLocked(editor, success);
+            }
+            return;
+        }
+
+        ReentrantLock lock = lockFor(editor.entry.key);
+        lock.lock();
+        try {
+            synchronized (this) {
+                completeEditLocked(editor, success);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completeEditLocked(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
@@ -530,21 +838,35 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journalWriter.write(CLEAN, entry.key, entry.lengths);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journalWriter.write(REMOVE, entry.key, null);
         }
-        journalWriter.flush();
+        flushJournal();
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Makes the lines written since the last flush durable according to the
+     * configured journal durability. Must be called while holding the monitor.
+     */
+    private void flushJournal() throws IOException {
+        if (journalDurability == JOURNAL_FLUSH_EVERY_OP) {
+            journalWriter.flush();
+        } else if (journalDurability == JOURNAL_FLUSH_BATCH && !journalFlushPending) {
+            journalFlushPending = true;
+            journalFlushExecutor.schedule(journalFlushRunnable, journalBatchDelayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
@@ -561,7 +883,74 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
+        if (entryLocks == null) {
+            synchronized (this) {
+                return removeLocked(key);
+            }
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            synchronized (this) {
+                return removeLocked(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decides whether {@link #removeIf} drops an entry. Called with the entry's
+     * lock held, so no edit of that entry can be committed while it runs.
+     */
+    public interface RemovePredicate {
+        boolean shouldRemove(Snapshot snapshot) throws IOException;
+    }
+
+    /**
+     * Like {@link #remove}, but drops the entry only if {@code predicate}
+     * accepts its current snapshot. The entry's lock is held from the read
+     * until the removal, so a value committed concurrently for the same key is
+     * either seen by the predicate or committed after the removal, never lost.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean removeIf(String key, RemovePredicate predicate) throws IOException {
+        if (entryLocks == null) {
+            synchronized (this) {
+                return removeIfLocked(key, predicate);
+            }
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return removeIfLocked(key, predicate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean removeIfLocked(String key, RemovePredicate predicate) throws IOException {
+        Snapshot snapshot = get(key);
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            if (!predicate.shouldRemove(snapshot)) {
+                return false;
+            }
+        } finally {
+            snapshot.close();
+        }
+        synchronized (this) {
+            return removeLocked(key);
+        }
+    }
+
+    private boolean removeLocked(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -577,9 +966,10 @@ public final class DiskLruCache implements Closeable {
             size -= entry.lengths[i];
             entry.lengths[i] = 0;
         }
+        entry.readable = false;
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalWriter.write(REMOVE, key, null);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -589,6 +979,39 @@ public final class DiskLruCache implements Closeable {
         return true;
     }
 
+    /**
+     * Returns true if a published entry named {@code key} exists. Unlike
+     * {@link #get} no files are opened. The entry counts as accessed for LRU
+     * ordering but no READ line is journaled.
+     */
+    public synchronized boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (accessTracking == ACCESS_TRACKING_MEMORY) {
+            accessOrderChanged = true;
+        }
+        return entry.readable;
+    }
+
+    /**
+     * Returns the keys of all published entries, least recently used first.
+     * The list is a copy; it does not change the LRU order.
+     */
+    public synchronized List<String> keys() {
+        checkNotClosed();
+        List<String> keys = new ArrayList<String>(lruEntries.size());
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
     /** Returns true if this cache has been closed. */
     public synchronized boolean isClosed() {
         return journalWriter == null;
@@ -618,17 +1041,63 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
+        if (accessOrderChanged) {
+            // Persist the in-memory LRU order as the order of the compacted journal.
+            rebuildJournal();
+            redundantOpCount = 0;
+        }
         journalWriter.close();
         journalWriter = null;
+        if (journalFlushExecutor != null) {
+            journalFlushExecutor.shutdown();
+        }
     }
 
     private void trimToSize() throws IOException {
+        if (entryLocks != null) {
+            trimToSizeConcurrent();
+            return;
+        }
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            removeLocked(toEvict.getKey());
         }
     }
 
+    /**
+     * Evicts from the eldest entry on while holding this cache's monitor.
+     * Entries whose stripe is busy or that are being edited are skipped; the
+     * next cleanup will retry them.
+     */
+    private void trimToSizeConcurrent() throws IOException {
+        if (size <= maxSize) {
+            return;
+        }
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (size <= maxSize) {
+                return;
+            }
+            if (entry.currentEditor != null) {
+                continue;
+            }
+            ReentrantLock lock = lockFor(entry.key);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                removeLocked(entry.key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return entryLocks[(h & 0x7fffffff) % entryLocks.length];
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -696,6 +1165,178 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Options used when opening a cache. The defaults reproduce the classic
+     * behaviour where every operation is serialized on the cache.
+     */
+    public static final class Options {
+        private static final int DEFAULT_LOCK_STRIPES = 16;
+        private static final long DEFAULT_JOURNAL_BATCH_DELAY_MILLIS = 20;
+
+        private int lockStripes;
+        private int journalDurability = JOURNAL_FLUSH_EVERY_OP;
+        private long journalBatchDelayMillis = DEFAULT_JOURNAL_BATCH_DELAY_MILLIS;
+        private int accessTracking = ACCESS_TRACKING_JOURNAL;
+        private int journalFormat = JOURNAL_FORMAT_TEXT;
+
+        /**
+         * Enables concurrent mode, guarding entry state with
+         * {@link #DEFAULT_LOCK_STRIPES} striped locks.
+         */
+        public Options setConcurrent() {
+            return setConcurrent(DEFAULT_LOCK_STRIPES);
+        }
+
+        /**
+         * Enables concurrent mode with {@code stripes} locks, or restores the
+         * serialized mode when {@code stripes} is 0.
+         */
+        public Options setConcurrent(int stripes) {
+            if (stripes < 0) {
+                throw new IllegalArgumentException("stripes < 0");
+            }
+            this.lockStripes = stripes;
+            return this;
+        }
+
+        /**
+         * Sets how eagerly journal lines are flushed: one of
+         * {@link #JOURNAL_FLUSH_EVERY_OP}, {@link #JOURNAL_FLUSH_BATCH} or
+         * {@link #JOURNAL_FLUSH_ON_CLOSE}.
+         */
+        public Options setJournalDurability(int durability) {
+            if (durability != JOURNAL_FLUSH_EVERY_OP && durability != JOURNAL_FLUSH_BATCH
+                    && durability != JOURNAL_FLUSH_ON_CLOSE) {
+                throw new IllegalArgumentException("unknown journal durability " + durability);
+            }
+            this.journalDurability = durability;
+            return this;
+        }
+
+        /**
+         * Sets how long the first edit of a batch waits for others to join
+         * before the batch is flushed in {@link #JOURNAL_FLUSH_BATCH} mode.
+         */
+        public Options setJournalBatchDelay(long delay, TimeUnit unit) {
+            if (delay < 0) {
+                throw new IllegalArgumentException("delay < 0");
+            }
+            this.journalBatchDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Sets how reads are recorded for LRU ordering: one of
+         * {@link #ACCESS_TRACKING_JOURNAL} or {@link #ACCESS_TRACKING_MEMORY}.
+         */
+        public Options setAccessTracking(int accessTracking) {
+            if (accessTracking != ACCESS_TRACKING_JOURNAL && accessTracking != ACCESS_TRACKING_MEMORY) {
+                throw new IllegalArgumentException("unknown access tracking " + accessTracking);
+            }
+            this.accessTracking = accessTracking;
+            return this;
+        }
+
+        /**
+         * Sets the format new journals are written in: one of
+         * {@link #JOURNAL_FORMAT_TEXT} or {@link #JOURNAL_FORMAT_BINARY}.
+         */
+        public Options setJournalFormat(int journalFormat) {
+            if (journalFormat != JOURNAL_FORMAT_TEXT && journalFormat != JOURNAL_FORMAT_BINARY) {
+                throw new IllegalArgumentException("unknown journal format " + journalFormat);
+            }
+            this.journalFormat = journalFormat;
+            return this;
+        }
+    }
+
+    /** Appends records to the journal in one of the journal formats. */
+    private abstract static class JournalWriter implements Closeable {
+        abstract void writeHeader(int appVersion, int valueCount) throws IOException;
+
+        /** Writes one record; {@code lengths} is only used by CLEAN records. */
+        abstract void write(String op, String key, long[] lengths) throws IOException;
+
+        abstract void flush() throws IOException;
+    }
+
+    private static final class TextJournalWriter extends JournalWriter {
+        private final Writer writer;
+
+        private TextJournalWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override void writeHeader(int appVersion, int valueCount) throws IOException {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+        }
+
+        @Override void write(String op, String key, long[] lengths) throws IOException {
+            writer.write(op);
+            writer.write(' ');
+            writer.write(key);
+            if (lengths != null) {
+                for (long length : lengths) {
+                    writer.write(' ');
+                    writer.write(Long.toString(length));
+                }
+            }
+            writer.write('\n');
+        }
+
+        @Override void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static final class BinaryJournalWriter extends JournalWriter {
+        private final OutputStream out;
+        private final BinaryJournal.Writer writer;
+
+        private BinaryJournalWriter(OutputStream out) {
+            this.out = out;
+            this.writer = new BinaryJournal.Writer(out);
+        }
+
+        @Override void writeHeader(int appVersion, int valueCount) throws IOException {
+            BinaryJournal.writeHeader(out, appVersion, valueCount);
+        }
+
+        @Override void write(String op, String key, long[] lengths) throws IOException {
+            final byte binaryOp;
+            if (CLEAN.equals(op)) {
+                binaryOp = BinaryJournal.CLEAN;
+            } else if (DIRTY.equals(op)) {
+                binaryOp = BinaryJournal.DIRTY;
+            } else if (REMOVE.equals(op)) {
+                binaryOp = BinaryJournal.REMOVE;
+            } else {
+                binaryOp = BinaryJournal.READ;
+            }
+            writer.write(binaryOp, key, lengths);
+        }
+
+        @Override void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override public void close() throws IOException {
+            writer.close();
+        }
+    }
+
     private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
         @Override
         public void write(int b) throws IOException {
@@ -883,14 +1524,6 @@ public final class DiskLruCache implements Closeable {
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
         /** Set lengths using decimal numbers like "10123". */
         private void setLengths(String[] strings) throws IOException {
             if (strings.length != valueCount) {
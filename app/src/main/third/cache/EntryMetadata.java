@@ -0,0 +1,193 @@
+package cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DiskCache每条数据的meta, 作为头部写在value文件的开始处: [头部长度 int][头部].
+ * <p>
+ * 头部格式:
+ * <pre>
+ *     magic       1 byte   0xC1
+ *     version     1 byte
+ *     expiresAt   long     过期时间, 毫秒, 不过期为Long.MAX_VALUE
+ *     count       short    自定义数据个数
+ *     key, value  UTF      count组自定义数据
+ * </pre>
+ * 读取时不需要反射. 自定义数据中有非String的值时, 整个头部仍使用java序列化的map,
+ * 旧版本写入的头部也是这种格式, 以0xAC开头, 读取时兼容.
+ */
+final class EntryMetadata {
+
+    static final String TIMEOUT_KEY = "timeout";
+    static final long NO_EXPIRY = Long.MAX_VALUE;
+    static final EntryMetadata EMPTY = new EntryMetadata(NO_EXPIRY, null);
+
+    private static final int TYPED_MAGIC = 0xC1;
+    private static final int TYPED_VERSION_1 = 1;
+    private static final int SERIALIZED_MAGIC = 0xAC;
+    private static final int MAX_UTF_CHARS = 0xffff / 3;
+
+    final long expiresAt;
+    // 除timeout以外的自定义数据, 可能为null
+    private final Map<String, Serializable> annotations;
+
+    private EntryMetadata(long expiresAt, Map<String, Serializable> annotations) {
+        this.expiresAt = expiresAt;
+        this.annotations = annotations;
+    }
+
+    /**
+     * @param timeout 超时时间 毫秒
+     */
+    static EntryMetadata withTimeout(long timeout) {
+        return new EntryMetadata(System.currentTimeMillis() + timeout, null);
+    }
+
+    /**
+     * 使用用户自定义数据创建, timeout会被解析为过期时间
+     */
+    static EntryMetadata fromAnnotations(Map<String, ? extends Serializable> map) {
+        if (map == null || map.isEmpty()) {
+            return EMPTY;
+        }
+
+        long expiresAt = NO_EXPIRY;
+        Map<String, Serializable> annotations = new HashMap<String, Serializable>(map);
+        Serializable timeout = annotations.get(TIMEOUT_KEY);
+        if (timeout instanceof String) {
+            try {
+                expiresAt = Long.parseLong((String) timeout);
+                annotations.remove(TIMEOUT_KEY);
+            } catch (NumberFormatException e) {
+                // 解析错误按未超时处理, 原样保留
+            }
+        }
+        return new EntryMetadata(expiresAt, annotations.isEmpty() ? null : annotations);
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    /**
+     * 转换为用户使用的map, 过期时间以timeout字符串的形式返回
+     */
+    Map<String, Serializable> toMap() {
+        Map<String, Serializable> map = new HashMap<String, Serializable>();
+        if (annotations != null) {
+            map.putAll(annotations);
+        }
+        if (expiresAt != NO_EXPIRY) {
+            map.put(TIMEOUT_KEY, String.valueOf(expiresAt));
+        }
+        return map;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        if (isTyped()) {
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(TYPED_MAGIC);
+            header.writeByte(TYPED_VERSION_1);
+            header.writeLong(expiresAt);
+            if (annotations == null) {
+                header.writeShort(0);
+            } else {
+                header.writeShort(annotations.size());
+                for (Map.Entry<String, Serializable> entry : annotations.entrySet()) {
+                    header.writeUTF(entry.getKey());
+                    header.writeUTF((String) entry.getValue());
+                }
+            }
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(toMap());
+            oos.close();
+        }
+
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(bytes.size());
+        bytes.writeTo(dos);
+    }
+
+    /**
+     * 读取头部, 读取后流的位置在value的开始处
+     */
+    static EntryMetadata readFrom(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        if (bytes.length == 0) {
+            throw new IOException("empty metadata header");
+        }
+
+        int magic = bytes[0] & 0xff;
+        if (magic == TYPED_MAGIC) {
+            return readTyped(bytes);
+        } else if (magic == SERIALIZED_MAGIC) {
+            return readSerialized(bytes);
+        }
+        throw new IOException("unexpected metadata header: " + magic);
+    }
+
+    private static EntryMetadata readTyped(byte[] bytes) throws IOException {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+        int version = header.readUnsignedByte();
+        if (version != TYPED_VERSION_1) {
+            throw new IOException("unexpected metadata version: " + version);
+        }
+        long expiresAt = header.readLong();
+        int count = header.readUnsignedShort();
+        if (count == 0) {
+            return expiresAt == NO_EXPIRY ? EMPTY : new EntryMetadata(expiresAt, null);
+        }
+        Map<String, Serializable> annotations = new HashMap<String, Serializable>(count * 2);
+        for (int i = 0; i < count; i++) {
+            annotations.put(header.readUTF(), header.readUTF());
+        }
+        return new EntryMetadata(expiresAt, annotations);
+    }
+
+    private static EntryMetadata readSerialized(byte[] bytes) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Serializable> map = (Map<String, Serializable>) ois.readObject();
+            return fromAnnotations(map);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unexpected metadata class: " + e.getMessage());
+        } finally {
+            Util.closeQuietly(ois);
+        }
+    }
+
+    private boolean isTyped() {
+        if (annotations == null) {
+            return true;
+        }
+        if (annotations.size() > 0xffff) {
+            return false;
+        }
+        for (Map.Entry<String, Serializable> entry : annotations.entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                return false;
+            }
+            // writeUTF最多写入65535字节
+            if (entry.getKey().length() > MAX_UTF_CHARS || ((String) entry.getValue()).length() > MAX_UTF_CHARS) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DiskCache中有过期时间的数据的内存索引, key为cache使用的key.
+ * <p>
+ * 索引在close和每次清理过期数据后写入journal同目录的文件, 同时记录当时journal的长度和修改时间.
+ * 打开时journal和记录的不一致, 说明保存后又有写入或删除, 索引可能已过期, 不使用.
+ * 索引文件不可用时需要扫描所有数据的头部重建, 重建完成前索引不完整, 只能用于提前判断已知的过期数据.
+ * <p>
+ * 写入数据时先更新索引再提交, 这样保存的索引只要和journal一致, 就包含journal中所有的写入.
+ */
+final class ExpiryIndex {
+
+    static final String INDEX_FILE = "journal.expiry";
+    private static final int MAGIC = 0x45585032;
+
+    private final ConcurrentHashMap<String, Long> mExpiries = new ConcurrentHashMap<String, Long>();
+    // 索引是否包含所有有过期时间的数据
+    private volatile boolean mComplete;
+    // 重建过程中被修改过的key, 重建时不覆盖
+    private Set<String> mTouchedWhileRebuilding;
+
+    /**
+     * 读取索引文件, 不可用时删除
+     *
+     * @return 是否读取成功, 成功后索引是完整的
+     */
+    boolean load(File dir) {
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        boolean loaded = false;
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != MAGIC || dis.readLong() != journal.length() || dis.readLong() != journal.lastModified()) {
+                return false;
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = dis.readUTF();
+                mExpiries.put(key, dis.readLong());
+            }
+            mComplete = true;
+            loaded = true;
+            return true;
+        } catch (IOException e) {
+            mExpiries.clear();
+            return false;
+        } finally {
+            Util.closeQuietly(dis);
+            if (!loaded) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 写入索引文件, 只有完整的索引才会写入.
+     * 调用前需要把journal写入文件, 之后的写入会使保存的索引失效
+     */
+    void persist(File dir) throws IOException {
+        if (!mComplete) {
+            return;
+        }
+
+        File file = new File(dir, INDEX_FILE);
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        // 先读取journal再复制索引, 复制时没有包含的写入一定在journal的这个长度之后
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        long journalLength = journal.length();
+        long journalModified = journal.lastModified();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(mExpiries.entrySet());
+            dos.writeInt(MAGIC);
+            dos.writeLong(journalLength);
+            dos.writeLong(journalModified);
+            dos.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries) {
+                dos.writeUTF(entry.getKey());
+                dos.writeLong(entry.getValue());
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("fail to rename " + tmp);
+        }
+    }
+
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * 根据索引判断是否已过期, 索引中没有的key返回false
+     */
+    boolean isExpired(String key, long now) {
+        Long expiresAt = mExpiries.get(key);
+        return expiresAt != null && expiresAt <= now;
+    }
+
+    /**
+     * 数据写入或删除后更新索引
+     *
+     * @param expiresAt 过期时间, EntryMetadata.NO_EXPIRY表示不过期或已删除
+     */
+    synchronized void update(String key, long expiresAt) {
+        if (mTouchedWhileRebuilding != null) {
+            mTouchedWhileRebuilding.add(key);
+        }
+        if (expiresAt == EntryMetadata.NO_EXPIRY) {
+            mExpiries.remove(key);
+        } else {
+            mExpiries.put(key, expiresAt);
+        }
+    }
+
+    /**
+     * 过期数据删除后, 如果索引没有被更新过则移除.
+     * 被LRU淘汰的数据也会在过期后由这里移除.
+     */
+    void removeIfUnchanged(String key, long expiresAt) {
+        mExpiries.remove(key, expiresAt);
+    }
+
+    synchronized void beginRebuild() {
+        mTouchedWhileRebuilding = new HashSet<String>();
+    }
+
+    /**
+     * 重建时记录从数据头部读到的过期时间, 重建开始后修改过的key以修改为准
+     */
+    synchronized void recordFromDisk(String key, long expiresAt) {
+        if (expiresAt == EntryMetadata.NO_EXPIRY || mTouchedWhileRebuilding.contains(key)) {
+            return;
+        }
+        mExpiries.put(key, expiresAt);
+    }
+
+    /**
+     * @param complete 是否扫描了所有数据
+     */
+    synchronized void endRebuild(boolean complete) {
+        mTouchedWhileRebuilding = null;
+        mComplete = complete;
+    }
+
+    /**
+     * @return 所有已过期的key和过期时间
+     */
+    Map<String, Long> expired(long now) {
+        Map<String, Long> expired = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : mExpiries.entrySet()) {
+            if (entry.getValue() <= now) {
+                expired.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return expired;
+    }
+
+    synchronized void clear() {
+        mExpiries.clear();
+        if (mTouchedWhileRebuilding == null) {
+            mComplete = true;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package cache;
+
+/**
+ * 把用户的key转换成DiskLruCache使用的key, 结果必须匹配[a-z0-9_-]{1,120}.
+ * 同一个缓存目录需要一直使用同一种转换, 否则旧数据无法再读取, 只能等LRU淘汰.
+ *
+ * @see KeyHashers
+ */
+public interface KeyHasher {
+
+    /**
+     * @param key 用户的key
+     * @return cache使用的key
+     */
+    String toInternalKey(String key);
+}
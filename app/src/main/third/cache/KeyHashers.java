@@ -0,0 +1,195 @@
+package cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 常用的{@link KeyHasher}.
+ * <ul>
+ * <li>{@link #LEGACY_MD5}: MD5, 和旧版本一样去掉开头的0, 已有的缓存使用</li>
+ * <li>{@link #MD5}: MD5, 固定32位16进制</li>
+ * <li>{@link #MURMUR3_128}: 非加密的128位MurmurHash3, 固定32位16进制, 比MD5快很多</li>
+ * </ul>
+ */
+public final class KeyHashers {
+
+    public static final KeyHasher LEGACY_MD5 = new Md5KeyHasher(true);
+    public static final KeyHasher MD5 = new Md5KeyHasher(false);
+    public static final KeyHasher MURMUR3_128 = new Murmur3KeyHasher();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private KeyHashers() {
+    }
+
+    /**
+     * 每个线程复用一个MessageDigest
+     */
+    private static final class Md5KeyHasher implements KeyHasher {
+        private final boolean stripLeadingZeros;
+        private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new AssertionError();
+                }
+            }
+        };
+
+        private Md5KeyHasher(boolean stripLeadingZeros) {
+            this.stripLeadingZeros = stripLeadingZeros;
+        }
+
+        @Override
+        public String toInternalKey(String key) {
+            MessageDigest digest = digests.get();
+            byte[] bytes = digest.digest(key.getBytes(Util.UTF_8));
+            return toHex(bytes, stripLeadingZeros);
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128位, seed为0
+     */
+    private static final class Murmur3KeyHasher implements KeyHasher {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        @Override
+        public String toInternalKey(String key) {
+            byte[] data = key.getBytes(Util.UTF_8);
+            int length = data.length;
+            int blocks = length / 16;
+            long h1 = 0;
+            long h2 = 0;
+
+            for (int i = 0; i < blocks; i++) {
+                long k1 = getLong(data, i * 16);
+                long k2 = getLong(data, i * 16 + 8);
+
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            int tail = blocks * 16;
+            long k1 = 0;
+            long k2 = 0;
+            switch (length & 15) {
+                case 15:
+                    k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+                case 14:
+                    k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+                case 13:
+                    k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+                case 12:
+                    k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+                case 11:
+                    k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+                case 10:
+                    k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+                case 9:
+                    k2 ^= ((long) data[tail + 8] & 0xff);
+                    k2 *= C2;
+                    k2 = Long.rotateLeft(k2, 33);
+                    k2 *= C1;
+                    h2 ^= k2;
+                case 8:
+                    k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+                case 7:
+                    k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+                case 6:
+                    k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+                case 5:
+                    k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+                case 4:
+                    k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+                case 3:
+                    k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+                case 2:
+                    k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+                case 1:
+                    k1 ^= ((long) data[tail] & 0xff);
+                    k1 *= C1;
+                    k1 = Long.rotateLeft(k1, 31);
+                    k1 *= C2;
+                    h1 ^= k1;
+                default:
+                    break;
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+
+            char[] chars = new char[32];
+            putHex(chars, 0, h1);
+            putHex(chars, 16, h2);
+            return new String(chars);
+        }
+
+        private static long getLong(byte[] data, int offset) {
+            return ((long) data[offset] & 0xff)
+                    | ((long) data[offset + 1] & 0xff) << 8
+                    | ((long) data[offset + 2] & 0xff) << 16
+                    | ((long) data[offset + 3] & 0xff) << 24
+                    | ((long) data[offset + 4] & 0xff) << 32
+                    | ((long) data[offset + 5] & 0xff) << 40
+                    | ((long) data[offset + 6] & 0xff) << 48
+                    | ((long) data[offset + 7] & 0xff) << 56;
+        }
+
+        private static long fmix64(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+
+        private static void putHex(char[] chars, int offset, long value) {
+            for (int i = 15; i >= 0; i--) {
+                chars[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+                value >>>= 4;
+            }
+        }
+    }
+
+    /**
+     * @param stripLeadingZeros 是否和BigInteger.toString(16)一样去掉开头的0
+     */
+    private static String toHex(byte[] bytes, boolean stripLeadingZeros) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        int start = 0;
+        if (stripLeadingZeros) {
+            while (start < chars.length - 1 && chars[start] == '0') {
+                start++;
+            }
+        }
+        return new String(chars, start, chars.length - start);
+    }
+}
@@ -8,6 +8,9 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Util {
     public static final int DEFAULT_BUFFER_SIZE = 32 * 1024; // 32 KB
@@ -51,16 +54,29 @@ public final class Util {
      * could not be deleted, or if {@code dir} is not a readable directory.
      */
     static void deleteContents(File dir) throws IOException {
-        File[] files = dir.listFiles();
-        if (files == null) {
-            throw new IOException("not a readable directory: " + dir);
-        }
-        for (File file : files) {
-            if (file.isDirectory()) {
-                deleteContents(file);
+        // Walk iteratively so that deep trees cannot overflow the stack; directories are
+        // collected in pre-order and deleted in reverse, after everything they contain.
+        List<File> dirs = new ArrayList<File>();
+        ArrayDeque<File> stack = new ArrayDeque<File>();
+        stack.push(dir);
+        while (!stack.isEmpty()) {
+            File current = stack.pop();
+            File[] files = current.listFiles();
+            if (files == null) {
+                throw new IOException("not a readable directory: " + current);
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    dirs.add(file);
+                    stack.push(file);
+                } else if (!file.delete()) {
+                    throw new IOException("failed to delete file: " + file);
+                }
             }
-            if (!file.delete()) {
-                throw new IOException("failed to delete file: " + file);
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            if (!dirs.get(i).delete()) {
+                throw new IOException("failed to delete file: " + dirs.get(i));
             }
         }
     }
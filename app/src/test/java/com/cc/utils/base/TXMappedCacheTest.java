@@ -0,0 +1,181 @@
+package com.cc.utils.base;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * TXMappedCache在JVM上的测试, 使用临时文件初始化, 不依赖Context
+ */
+public class TXMappedCacheTest {
+
+    // 文件头 magic + version
+    private static final int HEADER_SIZE = 8;
+
+    private File mFile;
+    private TXMappedCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("tx.mapped", ".cache");
+        mFile.delete();
+        mCache = new TXMappedCache();
+        mCache.init(mFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.clear();
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void putAndGet_afterReopen() throws Exception {
+        mCache.putString("string", "value 中文");
+        mCache.putBoolean("boolean", true);
+        mCache.putInt("int", -7);
+        mCache.putLong("long", 1L << 40);
+        mCache.putFloat("float", 1.5f);
+        mCache.putString("removed", "value");
+        mCache.remove("removed");
+        mCache.putInt("int", 42);
+
+        mCache.init(mFile);
+
+        assertEquals("value 中文", mCache.getString("string", null));
+        assertTrue(mCache.getBoolean("boolean", false));
+        assertEquals(42, mCache.getInt("int", 0));
+        assertEquals(1L << 40, mCache.getLong("long", 0));
+        assertEquals(1.5f, mCache.getFloat("float", 0), 0);
+        assertFalse(mCache.contains("removed"));
+        assertEquals("default", mCache.getString("removed", "default"));
+    }
+
+    @Test
+    public void corruptedTailRecord_isRejected() throws Exception {
+        mCache.putString("first", "1");
+        mCache.putString("second", "2");
+        mCache.putString("last", "3");
+
+        // 修改最后一条记录的内容, crc校验失败
+        long lastRecord = findLastRecord(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            long position = lastRecord + 4 + 3;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        mCache.init(mFile);
+        assertEquals("1", mCache.getString("first", null));
+        assertEquals("2", mCache.getString("second", null));
+        assertFalse(mCache.contains("last"));
+
+        // 丢弃的记录被清零, 之后的写入可以正常读取
+        mCache.putString("after", "4");
+        mCache.init(mFile);
+        assertEquals("4", mCache.getString("after", null));
+        assertEquals("2", mCache.getString("second", null));
+        assertFalse(mCache.contains("last"));
+    }
+
+    @Test
+    public void compact_keepsLatestValues() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            builder.append('x');
+        }
+        String large = builder.toString();
+        int writes = 512;
+        for (int i = 0; i < writes; i++) {
+            mCache.putString("key", large + i);
+            mCache.putInt("count", i);
+        }
+
+        // 被覆盖的记录超过一半时自动压缩, 文件远小于写入的总量
+        assertTrue(mFile.length() < (long) writes * large.length() / 2);
+        assertEquals(large + (writes - 1), mCache.getString("key", null));
+
+        mCache.putString("removed", "value");
+        mCache.remove("removed");
+        mCache.compact();
+        // 压缩后每个key只有一条记录, 删除的key没有记录
+        assertEquals(2, countRecords(mFile));
+
+        mCache.init(mFile);
+        assertEquals(large + (writes - 1), mCache.getString("key", null));
+        assertEquals(writes - 1, mCache.getInt("count", 0));
+        assertFalse(mCache.contains("removed"));
+        assertEquals(2, countRecords(mFile));
+    }
+
+    @Test
+    public void compactDuringPut_keepsEveryWrite() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            builder.append('x');
+        }
+        String large = builder.toString();
+        int writes = 300;
+        for (int i = 0; i < writes; i++) {
+            mCache.putString("key", large + i);
+            mCache.putInt("count", i);
+        }
+
+        // 只通过put触发压缩, 重新打开后磁盘上的数据是最后一次写入的
+        mCache.init(mFile);
+        assertEquals(large + (writes - 1), mCache.getString("key", null));
+        assertEquals(writes - 1, mCache.getInt("count", 0));
+    }
+
+    /**
+     * @return 最后一条记录的起始位置
+     */
+    private static long findLastRecord(File file) throws IOException {
+        long last = -1;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long position = HEADER_SIZE;
+            int length;
+            while (position + 4 <= raf.length() && (length = readInt(raf, position)) > 0) {
+                last = position;
+                position += 4 + length + 4;
+            }
+        } finally {
+            raf.close();
+        }
+        return last;
+    }
+
+    private static int countRecords(File file) throws IOException {
+        int count = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long position = HEADER_SIZE;
+            int length;
+            while (position + 4 <= raf.length() && (length = readInt(raf, position)) > 0) {
+                count++;
+                position += 4 + length + 4;
+            }
+        } finally {
+            raf.close();
+        }
+        return count;
+    }
+
+    private static int readInt(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return raf.readInt();
+    }
+}